@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.databases;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ohdsi.utilities.concurrency.RingBuffer;
+import org.ohdsi.utilities.concurrency.RingBuffer.WaitStrategy;
+import org.ohdsi.utilities.files.Row;
+
+/**
+ * Inserts the rows written to its tables in a separate thread, so producing the rows (for example parsing an XML file) and inserting them into the
+ * database happen at the same time. Rows are handed over through a RingBuffer, so only a single thread may write to the tables of one
+ * BackgroundInsertThread. The tables share the connection, which is only used by this thread until finish() is called.
+ *
+ * @author MSCHUEMI
+ *
+ */
+public class BackgroundInsertThread extends Thread {
+
+	/**
+	 * Maximum number of rows waiting to be inserted.
+	 */
+	public static int			QUEUE_SIZE	= 10000;
+
+	private RingBuffer<Pending>	ringBuffer	= new RingBuffer<Pending>(QUEUE_SIZE, WaitStrategy.PARK);
+	private volatile Throwable	failure;
+
+	public BackgroundInsertThread() {
+		setName("Inserter");
+		setDaemon(true);
+		start();
+	}
+
+	/**
+	 * @return A table whose rows are inserted by this thread
+	 */
+	public InsertableDbTable createTable(ConnectionWrapper connectionWrapper, String tableName) {
+		return new QueuedDbTable(connectionWrapper, tableName);
+	}
+
+	@Override
+	public void run() {
+		List<Pending> batch = new ArrayList<Pending>();
+		while (ringBuffer.drainTo(batch, InsertableDbTable.batchSize) != -1) {
+			for (Pending pending : batch) {
+				// After a failure, keep taking rows so the writing thread does not block:
+				if (failure != null)
+					continue;
+				try {
+					if (pending.row == null)
+						pending.table.closeNow();
+					else
+						pending.table.writeNow(pending.row);
+				} catch (Throwable t) {
+					failure = t;
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Waits until all rows have been inserted. Call from the thread writing the rows, after closing the tables.
+	 */
+	public void finish() {
+		ringBuffer.close();
+		try {
+			join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		if (failure != null)
+			throw new RuntimeException("Error inserting rows", failure);
+	}
+
+	private static class Pending {
+		public QueuedDbTable	table;
+		public Row				row;
+
+		public Pending(QueuedDbTable table, Row row) {
+			this.table = table;
+			this.row = row;
+		}
+	}
+
+	private class QueuedDbTable extends InsertableDbTable {
+
+		public QueuedDbTable(ConnectionWrapper connectionWrapper, String tableName) {
+			super(connectionWrapper, tableName);
+		}
+
+		@Override
+		public void write(Row row) {
+			ringBuffer.put(new Pending(this, row));
+		}
+
+		@Override
+		public void close() {
+			ringBuffer.put(new Pending(this, null));
+		}
+
+		private void writeNow(Row row) {
+			super.write(row);
+		}
+
+		private void closeNow() {
+			super.close();
+		}
+	}
+}
@@ -15,6 +15,7 @@
  ******************************************************************************/
 package org.ohdsi.databases;
 
+import java.io.Reader;
 import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
@@ -25,8 +26,11 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -49,17 +53,38 @@ public class ConnectionWrapper {
 	private DbType		dbType;
 	private boolean		batchMode	= false;
 	private Statement	statement;
+	private String		database;
+	
+	/**
+	 * Maximum number of prepared INSERT statements kept open. When exceeded, the least recently used statement is closed.
+	 */
+	public static int						MAX_PREPARED_STATEMENTS		= 1000;
+	
+	/**
+	 * Prepared INSERT statements, one per combination of table and fields, keyed by their SQL, in order of last use
+	 */
+	private Map<String, PreparedStatement>	preparedStatements			= new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+	private Set<PreparedStatement>			preparedStatementsInBatch	= new LinkedHashSet<PreparedStatement>();
+	
+	/**
+	 * The SQL types of the fields (in lowercase) of the tables written to with prepared statements, used to bind null values
+	 */
+	private Map<String, Map<String, Integer>>	tableToFieldTypes			= new HashMap<String, Map<String, Integer>>();
 	
 	public ConnectionWrapper(String server, String domain, String user, String password, DbType dbType) {
 		this.connection = DBConnector.connect(server, domain, user, password, dbType);
 		this.dbType = dbType;
 	}
 	
+	public DbType getDbType() {
+		return dbType;
+	}
+	
 	public void setBatchMode(boolean batchMode) {
 		try {
 			if (this.batchMode && !batchMode) { // turn off batchmode
 				this.batchMode = false;
-				statement.executeBatch();
+				executeBatches();
 				connection.setAutoCommit(true);
 			} else {
 				this.batchMode = true;
@@ -74,10 +99,78 @@ public class ConnectionWrapper {
 				System.err.println("Error: " + e.getMessage());
 				e.printStackTrace();
 			}
+			clearPreparedStatementBatches();
+			rollback();
 			throw new RuntimeException("Error executing batch data");
 		}
 	}
 	
+	/**
+	 * Discards everything done in batch mode since batch mode was turned on, and turns batch mode off.
+	 */
+	public void rollback() {
+		batchMode = false;
+		clearPreparedStatementBatches();
+		try {
+			connection.rollback();
+			connection.setAutoCommit(true);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Executes the statements collected so far in batch mode, without committing and without leaving batch mode.
+	 */
+	public void executeBatch() {
+		try {
+			executeBatches();
+		} catch (SQLException e) {
+			System.err.println("Error: " + e.getMessage());
+			e.printStackTrace();
+			e = e.getNextException();
+			if (e != null) {
+				System.err.println("Error: " + e.getMessage());
+				e.printStackTrace();
+			}
+			clearPreparedStatementBatches();
+			throw new RuntimeException("Error executing batch data");
+		}
+	}
+	
+	private void executeBatches() throws SQLException {
+		statement.executeBatch();
+		for (PreparedStatement preparedStatement : preparedStatementsInBatch)
+			preparedStatement.executeBatch();
+		preparedStatementsInBatch.clear();
+	}
+	
+	/**
+	 * Loads data using PostgreSQL's COPY FROM STDIN. In batch mode the data becomes part of the current transaction. Any statements collected in batch
+	 * mode are not executed first, so call executeBatch() when the order matters.
+	 * 
+	 * @param sql
+	 *            The COPY statement, for example "COPY table (field1,field2) FROM STDIN"
+	 * @param data
+	 *            The data, in the format specified in the COPY statement
+	 * @return The number of rows loaded
+	 */
+	public long copyIn(String sql, Reader data) {
+		if (!dbType.equals(DbType.POSTGRESQL))
+			throw new RuntimeException("COPY is only supported on PostgreSQL");
+		return PostgresCopy.copyIn(connection, sql, data);
+	}
+	
+	private void clearPreparedStatementBatches() {
+		for (PreparedStatement preparedStatement : preparedStatementsInBatch)
+			try {
+				preparedStatement.clearBatch();
+			} catch (SQLException e) {
+				// do nothing
+			}
+		preparedStatementsInBatch.clear();
+	}
+	
 	/**
 	 * Switch the database to use.
 	 * 
@@ -86,6 +179,7 @@ public class ConnectionWrapper {
 	public void use(String database) {
 		if (database == null)
 			return;
+		this.database = database;
 		if (dbType.equals(DbType.ORACLE))
 			execute("ALTER SESSION SET current_schema = " + database);
 		else if (dbType.equals(DbType.POSTGRESQL))
@@ -126,6 +220,27 @@ public class ConnectionWrapper {
 		}
 	}
 	
+	/**
+	 * Loads rows using SQL Server's bulk copy. In batch mode the rows become part of the current transaction. Any statements collected in batch mode are
+	 * not executed first, so call executeBatch() when the order matters.
+	 * 
+	 * @param table
+	 *            The table name as it is in the database
+	 * @param fieldInfos
+	 *            The fields to load
+	 * @param rows
+	 *            The rows, each with one value per field
+	 * @param batchSize
+	 *            The number of rows sent to the server in one batch
+	 * @param tableLock
+	 *            Whether to lock the table during the bulk copy (TABLOCK), which allows minimal logging
+	 */
+	public void bulkCopy(String table, List<FieldInfo> fieldInfos, List<Object[]> rows, int batchSize, boolean tableLock) {
+		if (!dbType.equals(DbType.MSSQL))
+			throw new RuntimeException("Bulk copy is only supported on SQL Server");
+		SqlServerBulkCopy.writeToServer(connection, table, fieldInfos, rows, batchSize, tableLock);
+	}
+	
 	public void insertIntoTable(String table, Map<String, String> field2Value) {
 		List<String> fields = new ArrayList<String>(field2Value.keySet());
 		
@@ -168,6 +283,192 @@ public class ConnectionWrapper {
 		execute(sql.toString());
 	}
 	
+	/**
+	 * Insert a row using a prepared statement. One statement is prepared per combination of table and fields, and reused for all subsequent rows with
+	 * the same combination. In batch mode the row is added to the statement's batch, which is executed (after any other statements in the batch) when
+	 * batch mode is turned off.
+	 * 
+	 * @param table
+	 *            The table name as it is in the database (so already abbreviated)
+	 * @param fields
+	 *            The field names as they are in the database
+	 * @param values
+	 *            The values, in the same order as the fields. Long, Integer, java.sql.Date and java.sql.Timestamp values are bound as such, null as NULL
+	 *            of the type of the field, and anything else as a string.
+	 */
+	public void insertIntoTable(String table, List<String> fields, List<Object> values) {
+		StringBuilder sql = new StringBuilder();
+		sql.append("INSERT INTO ");
+		sql.append(table);
+		sql.append(" (");
+		sql.append(StringUtilities.join(fields, ","));
+		sql.append(") VALUES (?");
+		for (int i = 1; i < fields.size(); i++)
+			sql.append(",?");
+		sql.append(")");
+		executePrepared(sql.toString(), values, getFieldTypes(table, fields));
+	}
+	
+	/**
+	 * Insert a row, or update the existing row with the same primary key, in a single statement: INSERT ... ON CONFLICT DO UPDATE on PostgreSQL, MERGE
+	 * on SQL Server, and INSERT ... ON DUPLICATE KEY UPDATE on MySQL. The table must have a primary key on the given fields. Statements are prepared
+	 * and batched as in insertIntoTable.
+	 *
+	 * @param table
+	 *            The table name as it is in the database (so already abbreviated)
+	 * @param fields
+	 *            The field names as they are in the database. Fields that are not in the list keep their value when the row is updated
+	 * @param values
+	 *            The values, in the same order as the fields
+	 * @param primaryKey
+	 *            The fields of the primary key, which must also be in the list of fields
+	 */
+	public void upsertIntoTable(String table, List<String> fields, List<Object> values, List<String> primaryKey) {
+		List<String> updateFields = new ArrayList<String>();
+		for (String field : fields)
+			if (!primaryKey.contains(field))
+				updateFields.add(field);
+		StringBuilder sql = new StringBuilder();
+		if (dbType.equals(DbType.MSSQL)) {
+			sql.append("MERGE " + table + " AS t USING (VALUES (?");
+			for (int i = 1; i < fields.size(); i++)
+				sql.append(",?");
+			sql.append(")) AS s (" + StringUtilities.join(fields, ",") + ") ON ");
+			for (int i = 0; i < primaryKey.size(); i++)
+				sql.append((i == 0 ? "" : " AND ") + "t." + primaryKey.get(i) + " = s." + primaryKey.get(i));
+			if (updateFields.size() != 0) {
+				sql.append(" WHEN MATCHED THEN UPDATE SET ");
+				for (int i = 0; i < updateFields.size(); i++)
+					sql.append((i == 0 ? "" : ", ") + updateFields.get(i) + " = s." + updateFields.get(i));
+			}
+			sql.append(" WHEN NOT MATCHED THEN INSERT (" + StringUtilities.join(fields, ",") + ") VALUES (s.");
+			sql.append(StringUtilities.join(fields, ",s.") + ");");
+		} else if (dbType.equals(DbType.POSTGRESQL) || dbType.equals(DbType.MYSQL)) {
+			sql.append("INSERT INTO " + table + " (" + StringUtilities.join(fields, ",") + ") VALUES (?");
+			for (int i = 1; i < fields.size(); i++)
+				sql.append(",?");
+			sql.append(")");
+			if (dbType.equals(DbType.POSTGRESQL)) {
+				sql.append(" ON CONFLICT (" + StringUtilities.join(primaryKey, ",") + ") DO ");
+				if (updateFields.size() == 0)
+					sql.append("NOTHING");
+				else {
+					sql.append("UPDATE SET ");
+					for (int i = 0; i < updateFields.size(); i++)
+						sql.append((i == 0 ? "" : ", ") + updateFields.get(i) + " = EXCLUDED." + updateFields.get(i));
+				}
+			} else {
+				sql.append(" ON DUPLICATE KEY UPDATE ");
+				if (updateFields.size() == 0)
+					sql.append(primaryKey.get(0) + " = " + primaryKey.get(0));
+				else
+					for (int i = 0; i < updateFields.size(); i++)
+						sql.append((i == 0 ? "" : ", ") + updateFields.get(i) + " = VALUES(" + updateFields.get(i) + ")");
+			}
+		} else
+			throw new RuntimeException("Upsert is only supported on PostgreSQL, SQL Server and MySQL");
+		executePrepared(sql.toString(), values, getFieldTypes(table, fields));
+	}
+	
+	/**
+	 * Deletes the rows matching the condition, except the rows with the given keys. The keys are joined as a table of values, so the database can remove
+	 * the rows with one anti-join instead of evaluating a condition per key.
+	 * 
+	 * @param table
+	 *            The table to delete from
+	 * @param condition
+	 *            A condition on the table selecting the candidate rows, for example pmid IN (1,2,3)
+	 * @param keyFields
+	 *            The fields identifying the rows to keep
+	 * @param keys
+	 *            For each row to keep, the values of the key fields. If empty, all rows matching the condition are deleted
+	 */
+	public void deleteExcept(String table, String condition, List<String> keyFields, List<List<Object>> keys) {
+		StringBuilder sql = new StringBuilder();
+		sql.append("DELETE FROM " + table + " WHERE " + condition);
+		if (keys.size() != 0) {
+			if (!dbType.equals(DbType.MSSQL) && !dbType.equals(DbType.POSTGRESQL) && !dbType.equals(DbType.MYSQL))
+				throw new RuntimeException("Deleting all rows except a list of keys is only supported on PostgreSQL, SQL Server and MySQL");
+			// MySQL needs the ROW keyword for every row of a table value constructor:
+			String rowStart = dbType.equals(DbType.MYSQL) ? "ROW(" : "(";
+			sql.append(" AND NOT EXISTS (SELECT 1 FROM (VALUES ");
+			for (int i = 0; i < keys.size(); i++)
+				sql.append((i == 0 ? "" : ",") + rowStart + StringUtilities.join(keys.get(i), ",") + ")");
+			sql.append(") AS k (" + StringUtilities.join(keyFields, ",") + ") WHERE ");
+			for (int i = 0; i < keyFields.size(); i++)
+				sql.append((i == 0 ? "" : " AND ") + table + "." + keyFields.get(i) + " = k." + keyFields.get(i));
+			sql.append(")");
+		}
+		execute(sql.toString());
+	}
+	
+	/**
+	 * Execute a statement with parameters using a prepared statement. Prepared statements are cached and reused as in insertIntoTable, and in batch mode
+	 * the statement is added to the batch.
+	 * 
+	 * @param sql
+	 *            The SQL statement, with a question mark for each parameter
+	 * @param values
+	 *            The parameter values, bound as in insertIntoTable
+	 * @param types
+	 *            For each parameter, the SQL type (see java.sql.Types) of the field it is compared to or assigned to, used when the value is null. Not
+	 *            all drivers accept a null without a type, so get these with getFieldTypes
+	 */
+	public void executePrepared(String sql, List<Object> values, List<Integer> types) {
+		try {
+			PreparedStatement preparedStatement = preparedStatements.get(sql);
+			if (preparedStatement == null) {
+				if (preparedStatements.size() >= MAX_PREPARED_STATEMENTS)
+					closeLeastRecentlyUsedStatement();
+				preparedStatement = connection.prepareStatement(sql);
+				preparedStatements.put(sql, preparedStatement);
+			}
+			for (int i = 0; i < values.size(); i++)
+				setValue(preparedStatement, i + 1, values.get(i), types.get(i));
+			if (batchMode) {
+				preparedStatement.addBatch();
+				preparedStatementsInBatch.add(preparedStatement);
+			} else
+				preparedStatement.executeUpdate();
+		} catch (SQLException e) {
+			System.err.println(sql);
+			e.printStackTrace();
+			e = e.getNextException();
+			if (e != null) {
+				System.err.println("Error: " + e.getMessage());
+				e.printStackTrace();
+			}
+			throw new RuntimeException("Error inserting data");
+		}
+	}
+	
+	private void closeLeastRecentlyUsedStatement() throws SQLException {
+		Iterator<PreparedStatement> iterator = preparedStatements.values().iterator();
+		while (iterator.hasNext()) {
+			PreparedStatement preparedStatement = iterator.next();
+			if (!preparedStatementsInBatch.contains(preparedStatement)) {
+				preparedStatement.close();
+				iterator.remove();
+				return;
+			}
+		}
+	}
+	
+	private void setValue(PreparedStatement preparedStatement, int index, Object value, int type) throws SQLException {
+		if (value == null)
+			preparedStatement.setNull(index, type);
+		else if (value instanceof Long)
+			preparedStatement.setLong(index, (Long) value);
+		else if (value instanceof Integer)
+			preparedStatement.setInt(index, (Integer) value);
+		else if (value instanceof java.sql.Date)
+			preparedStatement.setDate(index, (java.sql.Date) value);
+		else if (value instanceof java.sql.Timestamp)
+			preparedStatement.setTimestamp(index, (java.sql.Timestamp) value);
+		else
+			preparedStatement.setString(index, value.toString());
+	}
+	
 	public void insertIntoTable(String tableName, List<Row> rows, boolean emptyStringToNull) {
 		List<String> columns = rows.get(0).getFieldNames();
 		String sql = "INSERT INTO " + tableName;
@@ -209,6 +510,15 @@ public class ConnectionWrapper {
 	}
 	
 	public void createTable(String table, List<String> fields, List<String> types, List<String> primaryKey) {
+		createTable(table, fields, types, primaryKey, true);
+	}
+	
+	/**
+	 * @param createPrimaryKey
+	 *            If false, the primary key fields are declared NOT NULL, but the primary key itself is not created, so it can be added after loading the
+	 *            data.
+	 */
+	public void createTable(String table, List<String> fields, List<String> types, List<String> primaryKey, boolean createPrimaryKey) {
 		StringBuilder sql = new StringBuilder();
 		sql.append("CREATE TABLE " + table + " (\n");
 		boolean first = true;
@@ -218,14 +528,91 @@ public class ConnectionWrapper {
 			else
 				sql.append(",\n");
 			sql.append("  " + fields.get(i) + " " + types.get(i));
+			if (primaryKey != null)
+				for (String keyField : primaryKey)
+					if (keyField.equalsIgnoreCase(fields.get(i)))
+						sql.append(" NOT NULL");
 		}
-		if (primaryKey != null && primaryKey.size() != 0)
+		if (createPrimaryKey && primaryKey != null && primaryKey.size() != 0)
 			sql.append(",\n  PRIMARY KEY (" + StringUtilities.join(primaryKey, ",") + ")\n");
 		sql.append(");\n\n");
 		execute(Abbreviator.abbreviate(sql.toString()));
 	}
 	
+	public boolean hasPrimaryKey(String table) {
+		try {
+			ResultSet resultSet = connection.getMetaData().getPrimaryKeys(getMetaDataCatalog(), getMetaDataSchema(), table);
+			boolean hasPrimaryKey = resultSet.next();
+			resultSet.close();
+			return hasPrimaryKey;
+		} catch (SQLException e) {
+			throw (new RuntimeException(e));
+		}
+	}
+	
+	/**
+	 * @return The fields of the primary key of the table (in lowercase), or an empty set if the table has no primary key
+	 */
+	public Set<String> getPrimaryKeyFields(String table) {
+		Set<String> fields = new HashSet<String>();
+		try {
+			ResultSet resultSet = connection.getMetaData().getPrimaryKeys(getMetaDataCatalog(), getMetaDataSchema(), table);
+			while (resultSet.next())
+				fields.add(resultSet.getString("COLUMN_NAME").toLowerCase());
+			resultSet.close();
+		} catch (SQLException e) {
+			throw (new RuntimeException(e));
+		}
+		return fields;
+	}
+	
+	/**
+	 * @return The names of all indexes on the table (in lowercase), including the index of the primary key
+	 */
+	public Set<String> getIndexNames(String table) {
+		Set<String> names = new HashSet<String>();
+		try {
+			ResultSet resultSet = connection.getMetaData().getIndexInfo(getMetaDataCatalog(), getMetaDataSchema(), table, false, true);
+			while (resultSet.next())
+				if (resultSet.getString("INDEX_NAME") != null)
+					names.add(resultSet.getString("INDEX_NAME").toLowerCase());
+			resultSet.close();
+		} catch (SQLException e) {
+			throw (new RuntimeException(e));
+		}
+		return names;
+	}
+	
+	/**
+	 * @return The catalog of the database selected with use(), so metadata lookups do not find a table with the same name in another database. SQL Server
+	 *         and MySQL select a database as catalog. Null if no database was selected.
+	 */
+	private String getMetaDataCatalog() {
+		if (database == null || dbType.equals(DbType.ORACLE) || dbType.equals(DbType.POSTGRESQL))
+			return null;
+		return database;
+	}
+	
+	/**
+	 * @return The schema selected with use(), in the case the database stores unquoted names in. Oracle and PostgreSQL select a schema. Null if no schema
+	 *         was selected.
+	 */
+	private String getMetaDataSchema() {
+		if (database == null)
+			return null;
+		if (dbType.equals(DbType.ORACLE))
+			return database.toUpperCase();
+		if (dbType.equals(DbType.POSTGRESQL))
+			return database.toLowerCase();
+		return null;
+	}
+	
 	public void createTableUsingVariableTypes(String table, List<String> fields, List<VariableType> variableTypes, List<String> primaryKey) {
+		createTableUsingVariableTypes(table, fields, variableTypes, primaryKey, true);
+	}
+	
+	public void createTableUsingVariableTypes(String table, List<String> fields, List<VariableType> variableTypes, List<String> primaryKey,
+			boolean createPrimaryKey) {
 		List<String> types = new ArrayList<String>(variableTypes.size());
 		for (VariableType variableType : variableTypes) {
 			if (dbType.equals(DbType.MYSQL)) {
@@ -259,11 +646,14 @@ public class ConnectionWrapper {
 				throw new RuntimeException("Unknown datasource type " + dbType);
 		}
 		
-		createTable(table, fields, types, primaryKey);
+		createTable(table, fields, types, primaryKey, createPrimaryKey);
 	}
 	
 	public void close() {
 		try {
+			for (PreparedStatement preparedStatement : preparedStatements.values())
+				preparedStatement.close();
+			preparedStatements.clear();
 			connection.close();
 		} catch (SQLException e) {
 			e.printStackTrace();
@@ -331,11 +721,15 @@ public class ConnectionWrapper {
 		return names;
 	}
 	
+	/**
+	 * Returns the fields of the table in the database and schema selected with use(), so a table with the same name elsewhere on the server is not
+	 * mistaken for it. Returns an empty list if the table does not exist there.
+	 */
 	public List<FieldInfo> getFieldInfo(String table) {
 		List<FieldInfo> fieldInfos = new ArrayList<FieldInfo>();
 		try {
 			DatabaseMetaData metaData = connection.getMetaData();
-			ResultSet resultSet = metaData.getColumns(null, null, table, null);
+			ResultSet resultSet = metaData.getColumns(getMetaDataCatalog(), getMetaDataSchema(), table, null);
 			while (resultSet.next()) {
 				FieldInfo fieldInfo = new FieldInfo();
 				fieldInfo.name = resultSet.getString("COLUMN_NAME");
@@ -349,13 +743,35 @@ public class ConnectionWrapper {
 		return fieldInfos;
 	}
 	
-	public class FieldInfo {
+	/**
+	 * Returns the SQL types (see java.sql.Types) of the fields of the table, for binding null values in executePrepared. The types are looked up once
+	 * per table. Fields that are not found are assumed to be VARCHAR.
+	 */
+	public List<Integer> getFieldTypes(String table, List<String> fields) {
+		Map<String, Integer> fieldToType = tableToFieldTypes.get(table);
+		if (fieldToType == null) {
+			fieldToType = new HashMap<String, Integer>();
+			for (FieldInfo fieldInfo : getFieldInfo(table))
+				fieldToType.put(fieldInfo.name.toLowerCase(), fieldInfo.type);
+			// Do not remember a table that does not exist yet:
+			if (fieldToType.size() != 0)
+				tableToFieldTypes.put(table, fieldToType);
+		}
+		List<Integer> types = new ArrayList<Integer>(fields.size());
+		for (String field : fields) {
+			Integer type = fieldToType.get(field.toLowerCase());
+			types.add(type == null ? Types.VARCHAR : type);
+		}
+		return types;
+	}
+	
+	public static class FieldInfo {
 		public int		type;
 		public String	name;
 		public int		length;
 	}
 	
-	private QueryResult query(String sql) {
+	public QueryResult query(String sql) {
 		return new QueryResult(sql);
 	}
 	
@@ -44,7 +44,8 @@ public class DBConnector {
 		} catch (ClassNotFoundException e1) {
 			throw new RuntimeException("Cannot find JDBC driver. Make sure the file postgresql-x.x-xxxx.jdbcx.jar is in the path");
 		}
-		String url = "jdbc:postgresql://" + server;
+		// Let the driver rewrite batches of prepared inserts into multi-row inserts:
+		String url = "jdbc:postgresql://" + server + (server.contains("?") ? "&" : "?") + "reWriteBatchedInserts=true";
 		try {
 			return DriverManager.getConnection(url, user, password);
 		} catch (SQLException e1) {
@@ -59,7 +60,7 @@ public class DBConnector {
 			throw new RuntimeException("Cannot find JDBC driver. Make sure the file mysql-connector-java-x.x.xx-bin.jar is in the path");
 		}
 
-		String url = "jdbc:mysql://" + server + ":3306/?useCursorFetch=true";
+		String url = "jdbc:mysql://" + server + ":3306/?useCursorFetch=true&rewriteBatchedStatements=true";
 
 		try {
 			return DriverManager.getConnection(url, user, password);
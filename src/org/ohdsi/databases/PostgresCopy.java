@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.databases;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.postgresql.PGConnection;
+
+/**
+ * Loads data using PostgreSQL's COPY FROM STDIN through the driver's CopyManager. This is the only class referring to the PostgreSQL driver, so it is
+ * only loaded when COPY is used, and the ConnectionWrapper can be used for other databases without the PostgreSQL driver on the classpath.
+ * 
+ * @author MSCHUEMI
+ *
+ */
+class PostgresCopy {
+	
+	/**
+	 * @param connection
+	 *            A connection to PostgreSQL. If auto-commit is off, the data becomes part of the current transaction.
+	 * @param sql
+	 *            The COPY statement, for example "COPY table (field1,field2) FROM STDIN"
+	 * @param data
+	 *            The data, in the format specified in the COPY statement
+	 * @return The number of rows loaded
+	 */
+	public static long copyIn(Connection connection, String sql, Reader data) {
+		try {
+			return connection.unwrap(PGConnection.class).getCopyAPI().copyIn(sql, data);
+		} catch (SQLException e) {
+			System.err.println(sql);
+			e.printStackTrace();
+			throw new RuntimeException("Error copying data");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.databases;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Types;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ohdsi.databases.ConnectionWrapper.FieldInfo;
+
+/**
+ * Loads rows into a SQL Server table using the driver's SQLServerBulkCopy, feeding it an ISQLServerBulkRecord. These classes are only available in version
+ * 4.2 and higher of the Microsoft JDBC driver, so they are accessed through reflection: the code still compiles against older drivers, and a clear error is
+ * given when bulk copy is used with a driver that does not support it. The sqljdbc4.jar in the lib folder is older, so it must be replaced by a newer
+ * driver (for example mssql-jdbc) to use bulk copy.
+ * 
+ * @author MSCHUEMI
+ *
+ */
+class SqlServerBulkCopy {
+	
+	private static String	PACKAGE	= "com.microsoft.sqlserver.jdbc.";
+	
+	/**
+	 * @param connection
+	 *            A connection to SQL Server. If auto-commit is off, the rows become part of the current transaction.
+	 * @param table
+	 *            The table name as it is in the database
+	 * @param fieldInfos
+	 *            The fields of the table
+	 * @param rows
+	 *            The rows, each with one value per field
+	 * @param batchSize
+	 *            The number of rows sent to the server in one batch
+	 * @param tableLock
+	 *            Whether to lock the table for the duration of the bulk copy (TABLOCK), which allows minimal logging
+	 */
+	public static void writeToServer(Connection connection, String table, List<FieldInfo> fieldInfos, List<Object[]> rows, int batchSize,
+			boolean tableLock) {
+		try {
+			Class<?> bulkCopyClass = Class.forName(PACKAGE + "SQLServerBulkCopy");
+			Class<?> optionsClass = Class.forName(PACKAGE + "SQLServerBulkCopyOptions");
+			Class<?> recordClass = Class.forName(PACKAGE + "ISQLServerBulkRecord");
+			
+			Object options = optionsClass.getDeclaredConstructor().newInstance();
+			optionsClass.getMethod("setTableLock", boolean.class).invoke(options, tableLock);
+			optionsClass.getMethod("setBatchSize", int.class).invoke(options, batchSize);
+			optionsClass.getMethod("setUseInternalTransaction", boolean.class).invoke(options, false);
+			
+			Object bulkCopy = bulkCopyClass.getConstructor(Connection.class).newInstance(connection);
+			try {
+				bulkCopyClass.getMethod("setBulkCopyOptions", optionsClass).invoke(bulkCopy, options);
+				bulkCopyClass.getMethod("setDestinationTableName", String.class).invoke(bulkCopy, table);
+				for (int i = 0; i < fieldInfos.size(); i++)
+					bulkCopyClass.getMethod("addColumnMapping", int.class, String.class).invoke(bulkCopy, i + 1, fieldInfos.get(i).name);
+				Object record = Proxy.newProxyInstance(recordClass.getClassLoader(), new Class<?>[] { recordClass }, new BulkRecord(fieldInfos, rows));
+				getWriteToServer(bulkCopyClass, recordClass).invoke(bulkCopy, record);
+			} finally {
+				bulkCopyClass.getMethod("close").invoke(bulkCopy);
+			}
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException("Bulk copy requires version 4.2 or higher of the Microsoft JDBC driver", e);
+		} catch (InvocationTargetException e) {
+			System.err.println("Error bulk copying into " + table + ": " + e.getCause().getMessage());
+			throw new RuntimeException("Error copying data", e.getCause());
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Newer drivers declare writeToServer(ISQLServerBulkData), which ISQLServerBulkRecord extends, older ones writeToServer(ISQLServerBulkRecord), so the
+	 * overload is found by its parameter type instead of by name and exact parameter.
+	 */
+	private static Method getWriteToServer(Class<?> bulkCopyClass, Class<?> recordClass) throws NoSuchMethodException {
+		for (Method method : bulkCopyClass.getMethods())
+			if (method.getName().equals("writeToServer") && method.getParameterTypes().length == 1
+					&& method.getParameterTypes()[0].isAssignableFrom(recordClass))
+				return method;
+		throw new NoSuchMethodException("No writeToServer method accepting " + recordClass.getName() + " in " + bulkCopyClass.getName());
+	}
+	
+	/**
+	 * Implements ISQLServerBulkRecord on a list of rows. Column ordinals start at 1.
+	 */
+	private static class BulkRecord implements InvocationHandler {
+		private List<FieldInfo>	fieldInfos;
+		private List<Object[]>	rows;
+		private int				index	= -1;
+		
+		public BulkRecord(List<FieldInfo> fieldInfos, List<Object[]> rows) {
+			this.fieldInfos = fieldInfos;
+			this.rows = rows;
+		}
+		
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("getColumnOrdinals")) {
+				Set<Integer> ordinals = new LinkedHashSet<Integer>();
+				for (int i = 1; i <= fieldInfos.size(); i++)
+					ordinals.add(i);
+				return ordinals;
+			} else if (name.equals("getColumnName"))
+				return field(args).name;
+			else if (name.equals("getColumnType"))
+				return field(args).type;
+			else if (name.equals("getPrecision"))
+				return getPrecision(field(args));
+			else if (name.equals("getScale"))
+				return 0;
+			else if (name.equals("isAutoIncrement"))
+				return false;
+			else if (name.equals("next"))
+				return ++index < rows.size();
+			else if (name.equals("getRowData"))
+				return rows.get(index);
+			else if (name.equals("getColumnDateTimeFormatter") || name.equals("addColumnMetadata") || name.equals("setTimestampWithTimezoneFormat")
+					|| name.equals("setTimeWithTimezoneFormat"))
+				// Column metadata comes from fieldInfos, and there are no columns with a time zone, so the driver's defaults are used:
+				return null;
+			else if (name.equals("hashCode"))
+				return System.identityHashCode(proxy);
+			else if (name.equals("equals"))
+				return proxy == args[0];
+			else if (name.equals("toString"))
+				return "BulkRecord for " + rows.size() + " rows";
+			else
+				return getDefault(method.getReturnType());
+		}
+		
+		/**
+		 * @return The value for methods added to the interface in later driver versions: a null object, false, or zero of the primitive type, since null
+		 *         cannot be converted to a primitive
+		 */
+		private static Object getDefault(Class<?> returnType) {
+			if (!returnType.isPrimitive() || returnType == void.class)
+				return null;
+			else if (returnType == boolean.class)
+				return false;
+			else if (returnType == char.class)
+				return (char) 0;
+			else if (returnType == byte.class)
+				return (byte) 0;
+			else if (returnType == short.class)
+				return (short) 0;
+			else if (returnType == int.class)
+				return 0;
+			else if (returnType == long.class)
+				return 0L;
+			else if (returnType == float.class)
+				return 0f;
+			else
+				return 0d;
+		}
+		
+		/**
+		 * @return The number of digits of numeric types, and the length of the other types
+		 */
+		private static int getPrecision(FieldInfo fieldInfo) {
+			switch (fieldInfo.type) {
+				case Types.TINYINT:
+					return 3;
+				case Types.SMALLINT:
+					return 5;
+				case Types.INTEGER:
+					return 10;
+				case Types.BIGINT:
+					return 19;
+				case Types.DATE:
+					return 10;
+				default:
+					return fieldInfo.length;
+			}
+		}
+		
+		private FieldInfo field(Object[] args) {
+			return fieldInfos.get((Integer) args[0] - 1);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ohdsi.databases.ConnectionWrapper;
+import org.ohdsi.databases.ConnectionWrapper.FieldInfo;
+
+/**
+ * Base class for writers that use a platform-specific bulk load instead of inserting rows one by one, which is much faster when loading the baseline.
+ * The rows of each batch of citations are collected per table, with a value for every field of the table, and are handed to load() one table at a time.
+ * Deletes, batching and transactions are handled as in the CitationWriter, so larger values of CITATIONS_PER_COMMIT (or CITATIONS_PER_BATCH when
+ * committing per file) mean fewer and larger loads.
+ * 
+ * @author MSCHUEMI
+ *
+ */
+public abstract class BulkCitationWriter extends CitationWriter {
+	
+	private Map<String, RowBuffer>	tableToBuffer	= new HashMap<String, RowBuffer>();
+	
+	/**
+	 * @param connectionWrapper
+	 *            The connection to write to
+	 * @param tables
+	 *            The (unabbreviated) names of the medcit tables to write
+	 * @param pmidPresenceBitmap
+	 *            The citations currently in the database, shared by all writers. Can be null.
+	 */
+	public BulkCitationWriter(ConnectionWrapper connectionWrapper, Set<String> tables, PmidPresenceBitmap pmidPresenceBitmap) {
+		super(connectionWrapper, tables, pmidPresenceBitmap);
+	}
+	
+	/**
+	 * Loads rows into a table. Called within the current transaction, after all pending deletes have been executed.
+	 * 
+	 * @param table
+	 *            The table name as it is in the database
+	 * @param fieldInfos
+	 *            All fields of the table, in table order
+	 * @param rows
+	 *            The rows, each with one value per field (null for missing values)
+	 */
+	protected abstract void load(String table, List<FieldInfo> fieldInfos, List<Object[]> rows);
+	
+	@Override
+	protected void insert(List<ParsedCitation> citations) {
+		for (RowBuffer buffer : tableToBuffer.values())
+			buffer.rows.clear();
+		for (ParsedCitation citation : citations)
+			if (!citation.isDelete) {
+				for (TableRow row : citation.rows)
+					addToBuffer(row);
+				if (citation.dateRow != null)
+					addToBuffer(citation.dateRow);
+			}
+		for (RowBuffer buffer : tableToBuffer.values())
+			if (buffer.rows.size() != 0) {
+				List<Object[]> rows = buffer.rows;
+				buffer.rows = new ArrayList<Object[]>();
+				load(buffer.table, buffer.fieldInfos, rows);
+			}
+	}
+	
+	private void addToBuffer(TableRow row) {
+		RowBuffer buffer = tableToBuffer.get(row.table);
+		if (buffer == null) {
+			buffer = new RowBuffer(row.table);
+			tableToBuffer.put(row.table, buffer);
+		}
+		buffer.add(row);
+	}
+	
+	private class RowBuffer {
+		public String			table;
+		public List<FieldInfo>	fieldInfos;
+		public List<String>		fields	= new ArrayList<String>();
+		public List<Object[]>	rows	= new ArrayList<Object[]>();
+		
+		public RowBuffer(String table) {
+			this.table = table;
+			fieldInfos = connectionWrapper.getFieldInfo(table);
+			for (FieldInfo fieldInfo : fieldInfos)
+				fields.add(fieldInfo.name.toLowerCase());
+		}
+		
+		public void add(TableRow row) {
+			if (row.tableValues != null && row.tableValues.length == fields.size()) {
+				rows.add(row.tableValues);
+				return;
+			}
+			Object[] values = new Object[fields.size()];
+			for (int i = 0; i < row.fields.size(); i++) {
+				int index = fields.indexOf(row.fields.get(i).toLowerCase());
+				if (index == -1)
+					throw new RuntimeException("Field " + row.fields.get(i) + " not found in table " + table);
+				values[index] = row.values.get(i);
+			}
+			rows.add(values);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.util.List;
+import java.util.Set;
+
+import org.ohdsi.databases.ConnectionWrapper;
+import org.ohdsi.databases.ConnectionWrapper.FieldInfo;
+import org.ohdsi.databases.DbType;
+
+/**
+ * Writes parsed citations to a SQL Server database using the driver's bulk copy. With TABLE_LOCK, SQL Server can use minimal logging, but writers on
+ * different connections will then block each other, so this is best used with a single write thread.
+ * 
+ * @author MSCHUEMI
+ *
+ */
+public class BulkCopyCitationWriter extends BulkCitationWriter {
+	
+	/**
+	 * Number of rows sent to the server in one batch.
+	 */
+	public static int		BATCH_SIZE	= 10000;
+	
+	/**
+	 * Lock the table during the bulk copy (TABLOCK).
+	 */
+	public static boolean	TABLE_LOCK	= true;
+	
+	/**
+	 * @param connectionWrapper
+	 *            The connection to write to. Must be a SQL Server connection.
+	 * @param tables
+	 *            The (unabbreviated) names of the medcit tables to write
+	 * @param pmidPresenceBitmap
+	 *            The citations currently in the database, shared by all writers. Can be null.
+	 */
+	public BulkCopyCitationWriter(ConnectionWrapper connectionWrapper, Set<String> tables, PmidPresenceBitmap pmidPresenceBitmap) {
+		super(connectionWrapper, tables, pmidPresenceBitmap);
+		if (!connectionWrapper.getDbType().equals(DbType.MSSQL))
+			throw new RuntimeException("Bulk copy can only be used with SQL Server");
+	}
+	
+	@Override
+	protected void load(String table, List<FieldInfo> fieldInfos, List<Object[]> rows) {
+		connectionWrapper.bulkCopy(table, fieldInfos, rows, BATCH_SIZE, TABLE_LOCK);
+	}
+}
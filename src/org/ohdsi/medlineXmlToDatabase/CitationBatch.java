@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.w3c.dom.Node;
+
+/**
+ * A batch of consecutive citations from a single file. This is the unit of work that is passed between the stages of the IngestPipeline.
+ * 
+ * @author MSCHUEMI
+ *
+ */
+public class CitationBatch {
+	public String				fileName;
+	
+	/**
+	 * Position of this batch in the overall stream of batches. The write stage uses this to restore the original order.
+	 */
+	public long					sequenceNumber;
+	
+	/**
+	 * The MedlineCitation and DeleteCitation nodes, in file order. Set to null once they have been transformed.
+	 */
+	public List<Node>			nodes		= new ArrayList<Node>();
+	
+	/**
+	 * The transformed citations, in file order.
+	 */
+	public List<ParsedCitation>	citations	= new ArrayList<ParsedCitation>();
+	
+	/**
+	 * True if this is the last batch of the file.
+	 */
+	public boolean				lastOfFile	= false;
+	
+	/**
+	 * True if the file could not be read completely. Only set on the last batch of the file.
+	 */
+	public boolean				fileError	= false;
+	
+	/**
+	 * Size and MD5 checksum of the file. Only set on the last batch of the file.
+	 */
+	public long					fileSize;
+	public String				checksum;
+	
+	/**
+	 * Number of citations in the file that passed and that were dropped by the citation filter, or -1 if there is no filter. Only set on the last batch
+	 * of the file.
+	 */
+	public int					filterHits	= -1;
+	public int					filterMisses;
+	
+	/**
+	 * Set if an error occurred while producing or transforming this batch. The write stage will rethrow it.
+	 */
+	public Throwable			failure;
+	
+	public CitationBatch(String fileName, long sequenceNumber) {
+		this.fileName = fileName;
+		this.sequenceNumber = sequenceNumber;
+	}
+}
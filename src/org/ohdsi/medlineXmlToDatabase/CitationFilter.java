@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Selects the citations to load, using an expression such as<br>
+ * <code>Article_Journal_JournalIssue_PubDate_Year &gt;= 2000 AND (MedlineJournalInfo_NlmUniqueID IN ('0372351', '0255562') OR
+ * MeshHeadingList_MeshHeading_DescriptorName_UI = 'D003920')</code><br>
+ * The paths are the names of the elements and attributes below the MedlineCitation element separated by underscores, which are the same as the field
+ * names in the medcit tables (abbreviated or not). Conditions can use =, !=, &lt;, &lt;=, &gt;, &gt;= and IN, and can be combined with AND, OR, NOT and
+ * parentheses. A condition is true if any of the values at the path satisfies it, so use NOT to require that none does. Quoted values are compared as
+ * text, unquoted values as numbers.<br>
+ * The filter is applied by the CitationIterator right after a citation has been read from the file, so citations that do not pass are dropped before any
+ * rows are built or deletes are issued. Because of that, a citation that is revised so it no longer passes keeps its previous version in the database.
+ * DeleteCitation elements are not filtered. When a projection is used, the element filter keeps the elements the expression uses, also if they are not
+ * stored.
+ *
+ * @author MSCHUEMI
+ *
+ */
+public class CitationFilter {
+
+	private static Pattern		tokenPattern		= Pattern.compile("\\s*('(?:[^']|'')*'|<=|>=|!=|<>|[=<>(),]|[^\\s=<>!(),']+)");
+	private static String		MEDLINE_CITATION	= Abbreviator.abbreviate("MedlineCitation") + "_";
+
+	private String				expression;
+	private Condition			condition;
+	private Set<String>			paths				= new HashSet<String>();
+	private Set<String>			prefixes			= new HashSet<String>();
+	private Map<String, String>	pathToAbbreviation	= new ConcurrentHashMap<String, String>();
+	private List<String>		tokens				= new ArrayList<String>();
+	private int					position;
+
+	/**
+	 * @param expression
+	 *            The filter expression
+	 */
+	public CitationFilter(String expression) {
+		this.expression = expression;
+		Matcher matcher = tokenPattern.matcher(expression);
+		int end = 0;
+		while (matcher.find() && matcher.start() == end) {
+			tokens.add(matcher.group(1));
+			end = matcher.end();
+		}
+		if (expression.substring(end).trim().length() != 0)
+			throw new RuntimeException("Cannot parse citation filter at '" + expression.substring(end).trim() + "'");
+		position = 0;
+		condition = parseOr();
+		if (position != tokens.size())
+			throw new RuntimeException("Unexpected '" + tokens.get(position) + "' in citation filter");
+		tokens = null;
+		for (String path : paths)
+			for (int i = path.indexOf('_'); i != -1; i = path.indexOf('_', i + 1))
+				prefixes.add(path.substring(0, i));
+	}
+
+	public String toString() {
+		return expression;
+	}
+
+	/**
+	 * @return The paths used in the expression, as the names from MedlineCitation down separated by underscores (abbreviated), so these elements can be
+	 *         kept when the citation is read with an element filter
+	 */
+	public List<String> getElementPaths() {
+		List<String> elementPaths = new ArrayList<String>(paths.size());
+		for (String path : paths)
+			elementPaths.add(MEDLINE_CITATION + path);
+		return elementPaths;
+	}
+
+	/**
+	 * @param citation
+	 *            A MedlineCitation element
+	 * @return True if the citation passes the filter
+	 */
+	public boolean accept(Node citation) {
+		Map<String, List<String>> pathToValues = new HashMap<String, List<String>>();
+		collectValues(citation, "", pathToValues);
+		return condition.evaluate(pathToValues);
+	}
+
+	/**
+	 * Collects the values of the paths used in the expression, only descending into elements that can contain them.
+	 */
+	private void collectValues(Node node, String path, Map<String, List<String>> pathToValues) {
+		NamedNodeMap attributes = node.getAttributes();
+		if (attributes != null)
+			for (int i = 0; i < attributes.getLength(); i++) {
+				Node attribute = attributes.item(i);
+				String attributePath = abbreviate(concatenate(path, attribute.getNodeName()));
+				if (paths.contains(attributePath))
+					addValue(pathToValues, attributePath, attribute.getNodeValue());
+			}
+		NodeList children = node.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			Node child = children.item(i);
+			if (child.getNodeType() != Node.ELEMENT_NODE)
+				continue;
+			String childPath = concatenate(path, child.getNodeName());
+			String abbreviation = abbreviate(childPath);
+			if (paths.contains(abbreviation))
+				addValue(pathToValues, abbreviation, child.getTextContent());
+			if (prefixes.contains(abbreviation))
+				collectValues(child, childPath, pathToValues);
+		}
+	}
+
+	private static void addValue(Map<String, List<String>> pathToValues, String path, String value) {
+		List<String> values = pathToValues.get(path);
+		if (values == null) {
+			values = new ArrayList<String>(1);
+			pathToValues.put(path, values);
+		}
+		values.add(value.trim());
+	}
+
+	private String abbreviate(String path) {
+		String abbreviation = pathToAbbreviation.get(path);
+		if (abbreviation == null) {
+			abbreviation = Abbreviator.abbreviate(path);
+			pathToAbbreviation.put(path, abbreviation);
+		}
+		return abbreviation;
+	}
+
+	private static String concatenate(String pre, String post) {
+		if (pre.length() != 0)
+			return pre + "_" + post;
+		else
+			return post;
+	}
+
+	private String peek() {
+		return position < tokens.size() ? tokens.get(position) : null;
+	}
+
+	private String next() {
+		if (position == tokens.size())
+			throw new RuntimeException("Unexpected end of citation filter");
+		return tokens.get(position++);
+	}
+
+	private void expect(String token) {
+		String found = next();
+		if (!found.equals(token))
+			throw new RuntimeException("Expected '" + token + "' but found '" + found + "' in citation filter");
+	}
+
+	private Condition parseOr() {
+		final Condition left = parseAnd();
+		if (peek() == null || !peek().equalsIgnoreCase("OR"))
+			return left;
+		next();
+		final Condition right = parseOr();
+		return new Condition() {
+			public boolean evaluate(Map<String, List<String>> pathToValues) {
+				return left.evaluate(pathToValues) || right.evaluate(pathToValues);
+			}
+		};
+	}
+
+	private Condition parseAnd() {
+		final Condition left = parseNot();
+		if (peek() == null || !peek().equalsIgnoreCase("AND"))
+			return left;
+		next();
+		final Condition right = parseAnd();
+		return new Condition() {
+			public boolean evaluate(Map<String, List<String>> pathToValues) {
+				return left.evaluate(pathToValues) && right.evaluate(pathToValues);
+			}
+		};
+	}
+
+	private Condition parseNot() {
+		if (peek() != null && peek().equalsIgnoreCase("NOT")) {
+			next();
+			final Condition condition = parseNot();
+			return new Condition() {
+				public boolean evaluate(Map<String, List<String>> pathToValues) {
+					return !condition.evaluate(pathToValues);
+				}
+			};
+		}
+		if ("(".equals(peek())) {
+			next();
+			Condition condition = parseOr();
+			expect(")");
+			return condition;
+		}
+		return parseComparison();
+	}
+
+	private Condition parseComparison() {
+		String path = Abbreviator.abbreviate(next());
+		if (path.startsWith(MEDLINE_CITATION))
+			path = path.substring(MEDLINE_CITATION.length());
+		paths.add(path);
+		final String finalPath = path;
+		final String operator = next().toUpperCase();
+		final List<Value> values = new ArrayList<Value>();
+		if (operator.equals("IN")) {
+			expect("(");
+			values.add(new Value(next()));
+			while (peek() != null && peek().equals(",")) {
+				next();
+				values.add(new Value(next()));
+			}
+			expect(")");
+		} else if (operator.equals("=") || operator.equals("!=") || operator.equals("<>") || operator.equals("<") || operator.equals("<=")
+				|| operator.equals(">") || operator.equals(">="))
+			values.add(new Value(next()));
+		else
+			throw new RuntimeException("Unknown operator '" + operator + "' in citation filter");
+		return new Condition() {
+			public boolean evaluate(Map<String, List<String>> pathToValues) {
+				List<String> found = pathToValues.get(finalPath);
+				if (found != null)
+					for (String string : found)
+						for (Value value : values)
+							if (value.matches(operator, string))
+								return true;
+				return false;
+			}
+		};
+	}
+
+	private interface Condition {
+		public boolean evaluate(Map<String, List<String>> pathToValues);
+	}
+
+	/**
+	 * A value in the expression. Quoted values are text, others are numbers.
+	 */
+	private static class Value {
+		private String	text;
+		private Double	number;
+
+		public Value(String token) {
+			if (token.startsWith("'"))
+				text = token.substring(1, token.length() - 1).replace("''", "'");
+			else
+				try {
+					number = Double.parseDouble(token);
+				} catch (NumberFormatException e) {
+					throw new RuntimeException("Value '" + token + "' in citation filter should be a number, or quoted text");
+				}
+		}
+
+		public boolean matches(String operator, String string) {
+			int comparison;
+			if (number == null)
+				comparison = string.compareTo(text);
+			else
+				try {
+					comparison = Double.compare(Double.parseDouble(string), number);
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			if (operator.equals("=") || operator.equals("IN"))
+				return comparison == 0;
+			if (operator.equals("!=") || operator.equals("<>"))
+				return comparison != 0;
+			if (operator.equals("<"))
+				return comparison < 0;
+			if (operator.equals("<="))
+				return comparison <= 0;
+			if (operator.equals(">"))
+				return comparison > 0;
+			return comparison >= 0;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ohdsi.databases.ConnectionWrapper;
+import org.ohdsi.utilities.StringUtilities;
+import org.ohdsi.utilities.collections.OneToManyList;
+import org.ohdsi.utilities.files.Row;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Stores a hash of the content of each citation in the citation_hash table, so citations that are delivered again without changes can be skipped. The
+ * hash is computed over a normalized form of the MedlineCitation element: element names, attributes in alphabetical order, and text with whitespace
+ * collapsed. It is written as an extra row of the citation, so it is replaced and deleted together with the rest of the citation.<br>
+ * Stored hashes are fetched with one query per version for each batch of citations, rather than per file, so the citations of a file can be passed on
+ * to the writers while the rest of the file is still being parsed. With CITATIONS_PER_BATCH equal to PMIDS_PER_QUERY this takes as many queries as
+ * looking up a whole file at once. When the PmidPresenceBitmap is used (TRACK_PMIDS), only citations it reports as present are looked up, so loading
+ * into an empty database needs no lookups at all.
+ *
+ * @author MSCHUEMI
+ *
+ */
+public class CitationHashStore {
+
+	/**
+	 * Maximum number of PMIDs in one lookup query.
+	 */
+	public static int				PMIDS_PER_QUERY	= 1000;
+
+	private static String			tableName		= "citation_hash";
+	private static Charset			utf8			= Charset.forName("UTF-8");
+
+	private ConnectionWrapper		connectionWrapper;
+	private PmidPresenceBitmap		pmidPresenceBitmap;
+
+	public static String getTableName() {
+		return tableName;
+	}
+
+	public static void createTable(ConnectionWrapper connectionWrapper) {
+		List<String> fields = new ArrayList<String>();
+		List<String> types = new ArrayList<String>();
+		fields.add("pmid");
+		types.add("int");
+
+		fields.add("pmid_version");
+		types.add("int");
+
+		fields.add("hash");
+		types.add("bigint");
+
+		List<String> primaryKey = new ArrayList<String>();
+		primaryKey.add("PMID");
+		primaryKey.add("PMID_Version");
+
+		connectionWrapper.createTable(tableName, fields, types, primaryKey);
+	}
+
+	/**
+	 * Creates the table if it does not exist yet.
+	 *
+	 * @param connectionWrapper
+	 *            A connection used only for looking up hashes
+	 * @param pmidPresenceBitmap
+	 *            The citations currently in the database. If null, all citations are looked up
+	 */
+	public static CitationHashStore load(ConnectionWrapper connectionWrapper, PmidPresenceBitmap pmidPresenceBitmap) {
+		if (connectionWrapper.getFieldInfo(tableName).size() == 0) {
+			System.out.println("Creating table " + tableName);
+			createTable(connectionWrapper);
+		}
+		CitationHashStore citationHashStore = new CitationHashStore();
+		citationHashStore.connectionWrapper = connectionWrapper;
+		citationHashStore.pmidPresenceBitmap = pmidPresenceBitmap;
+		return citationHashStore;
+	}
+
+	/**
+	 * Computes the hash of a MedlineCitation element.
+	 */
+	public static long computeHash(Node citation) {
+		StringBuilder normalized = new StringBuilder();
+		normalize(citation, normalized);
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(normalized.toString().getBytes(utf8));
+			long hash = 0;
+			for (int i = 0; i < 8; i++)
+				hash = (hash << 8) | (digest[i] & 0xff);
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void normalize(Node node, StringBuilder normalized) {
+		if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+			String text = node.getNodeValue().trim().replaceAll("\\s+", " ");
+			if (text.length() != 0)
+				normalized.append('"').append(text).append('"');
+		} else if (node.getNodeType() == Node.ELEMENT_NODE) {
+			normalized.append('<').append(node.getNodeName());
+			NamedNodeMap attributes = node.getAttributes();
+			String[] attributeStrings = new String[attributes.getLength()];
+			for (int i = 0; i < attributes.getLength(); i++)
+				attributeStrings[i] = attributes.item(i).getNodeName() + "=\"" + attributes.item(i).getNodeValue() + "\"";
+			Arrays.sort(attributeStrings);
+			for (String attributeString : attributeStrings)
+				normalized.append(' ').append(attributeString);
+			normalized.append('>');
+			NodeList children = node.getChildNodes();
+			for (int i = 0; i < children.getLength(); i++)
+				normalize(children.item(i), normalized);
+			normalized.append("</>");
+		}
+	}
+
+	/**
+	 * @return The row for the citation_hash table
+	 */
+	public static TableRow getHashRow(String pmid, String pmidVersion, long hash) {
+		TableRow row = new TableRow(tableName);
+		row.add("pmid", Long.parseLong(pmid));
+		row.add("pmid_version", Long.parseLong(pmidVersion));
+		row.add("hash", hash);
+		return row;
+	}
+
+	/**
+	 * Fetches the stored hashes of the citations.
+	 *
+	 * @return A map from PMID and version (separated by an underscore) to hash. Citations without a stored hash are not in the map
+	 */
+	public Map<String, Long> lookup(List<ParsedCitation> citations) {
+		Map<String, Long> keyToHash = new HashMap<String, Long>();
+		OneToManyList<String, String> versionToPmids = new OneToManyList<String, String>();
+		for (ParsedCitation citation : citations)
+			if (!citation.isDelete && (pmidPresenceBitmap == null || pmidPresenceBitmap.contains(citation.pmid, citation.pmidVersion)))
+				versionToPmids.put(citation.pmidVersion, citation.pmid);
+		for (String pmid_version : versionToPmids.keySet()) {
+			List<String> pmids = versionToPmids.get(pmid_version);
+			for (int start = 0; start < pmids.size(); start += PMIDS_PER_QUERY) {
+				String pmidList = StringUtilities.join(pmids.subList(start, Math.min(start + PMIDS_PER_QUERY, pmids.size())), ",");
+				for (Row row : connectionWrapper.query("SELECT pmid, pmid_version, hash FROM " + tableName + " WHERE pmid_version = " + pmid_version
+						+ " AND pmid IN (" + pmidList + ")"))
+					keyToHash.put(row.getCells().get(0) + "_" + row.getCells().get(1), Long.parseLong(row.getCells().get(2)));
+			}
+		}
+		return keyToHash;
+	}
+}
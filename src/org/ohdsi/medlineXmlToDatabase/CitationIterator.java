@@ -0,0 +1,291 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.ohdsi.utilities.XmlTools;
+import org.ohdsi.utilities.XmlTools.ElementFilter;
+import org.ohdsi.utilities.concurrency.RingBuffer;
+import org.ohdsi.utilities.concurrency.RingBuffer.WaitStrategy;
+import org.ohdsi.utilities.concurrency.StageStatistics;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * Iterates over the MedlineCitation and DeleteCitation elements of a single xml.gz file, in file order. The file is decompressed and parsed with StAX by a
+ * task on the provided executor, and each element is handed over as a small stand-alone DOM fragment. Because the hand-over ring buffer is bounded, memory
+ * use depends on the size of the individual citations, not on the size of the file.
+ *
+ * @author Schuemie
+ *
+ */
+public class CitationIterator implements Iterator<Node> {
+
+	public static String				MEDLINE_CITATION			= "MedlineCitation";
+	public static String				DELETE_CITATION				= "DeleteCitation";
+
+	/**
+	 * Number of citations handed over from the parsing thread in one go.
+	 */
+	public static int					BATCH_SIZE					= 100;
+
+	/**
+	 * Maximum number of batches the parsing thread can be ahead of the consumer.
+	 */
+	public static int					QUEUE_SIZE					= 10;
+
+	/**
+	 * How the parsing thread and the consumer wait for each other.
+	 */
+	public static WaitStrategy			WAIT_STRATEGY				= WaitStrategy.PARK;
+
+	private File						file;
+	private RingBuffer<Node>			ringBuffer					= new RingBuffer<Node>(BATCH_SIZE * QUEUE_SIZE, WAIT_STRATEGY);
+	private List<Node>					batch						= new ArrayList<Node>(BATCH_SIZE);
+	private int							batchIndex					= 0;
+	private boolean						endOfFile					= false;
+	private volatile boolean			error						= false;
+	private volatile String				checksum;
+	private StageStatistics				statistics;
+	private ElementFilter				filter;
+	private CitationFilter				citationFilter;
+	private volatile int				filterHits					= 0;
+	private volatile int				filterMisses				= 0;
+
+	/**
+	 * @param file
+	 *            The xml.gz file to iterate over
+	 * @param executor
+	 *            The executor that will run the decompression and parsing task
+	 * @param statistics
+	 *            Statistics to which the time spent decompressing and parsing is added
+	 */
+	public CitationIterator(File file, Executor executor, StageStatistics statistics) {
+		this(file, executor, statistics, null);
+	}
+
+	/**
+	 * @param file
+	 *            The xml.gz file to iterate over
+	 * @param executor
+	 *            The executor that will run the decompression and parsing task
+	 * @param statistics
+	 *            Statistics to which the time spent decompressing and parsing is added
+	 * @param filter
+	 *            Filter applied to MedlineCitation elements while streaming, so parts that are not needed are never materialized. Can be null
+	 */
+	public CitationIterator(File file, Executor executor, StageStatistics statistics, ElementFilter filter) {
+		this(file, executor, statistics, filter, null);
+	}
+
+	/**
+	 * @param file
+	 *            The xml.gz file to iterate over
+	 * @param executor
+	 *            The executor that will run the decompression and parsing task
+	 * @param statistics
+	 *            Statistics to which the time spent decompressing and parsing is added
+	 * @param filter
+	 *            Filter applied to MedlineCitation elements while streaming, so parts that are not needed are never materialized. Can be null
+	 * @param citationFilter
+	 *            MedlineCitation elements that do not pass this filter are dropped as soon as they have been read. Can be null
+	 */
+	public CitationIterator(File file, Executor executor, StageStatistics statistics, ElementFilter filter, CitationFilter citationFilter) {
+		this.file = file;
+		this.statistics = statistics;
+		this.filter = filter;
+		this.citationFilter = citationFilter;
+		executor.execute(new DecompressAndParseTask());
+	}
+
+	public String getFileName() {
+		return file.getName();
+	}
+
+	public long getFileSize() {
+		return file.length();
+	}
+
+	/**
+	 * @return The MD5 checksum of the file, as a hexadecimal string. Only meaningful after all elements have been iterated over.
+	 */
+	public String getChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * @return The number of citations that passed the citation filter, or -1 if there is no filter. Only meaningful after all elements have been iterated
+	 *         over.
+	 */
+	public int getFilterHits() {
+		return filterHits;
+	}
+
+	/**
+	 * @return The number of citations dropped by the citation filter. Only meaningful after all elements have been iterated over.
+	 */
+	public int getFilterMisses() {
+		return filterMisses;
+	}
+
+	/**
+	 * @return true if the file could not be read completely. Only meaningful after all elements have been iterated over.
+	 */
+	public boolean hasError() {
+		return error;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (batchIndex == batch.size() && !endOfFile) {
+			batch.clear();
+			batchIndex = 0;
+			if (ringBuffer.drainTo(batch, BATCH_SIZE) == -1)
+				endOfFile = true;
+		}
+		return batchIndex < batch.size();
+	}
+
+	@Override
+	public Node next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Node node = batch.get(batchIndex);
+		// Release the node, so it can be garbage collected while the rest of the batch is processed:
+		batch.set(batchIndex++, null);
+		return node;
+	}
+
+	@Override
+	public void remove() {
+		throw new RuntimeException("Calling unimplemented method remove in " + this.getClass().getName());
+	}
+
+	private class DecompressAndParseTask implements Runnable {
+
+		@Override
+		public void run() {
+			System.out.println("Processing " + file.getName());
+			long start = System.nanoTime();
+			long waiting = 0;
+			InputStream inputStream = null;
+			try {
+				DigestInputStream digestInputStream = new DigestInputStream(new FileInputStream(file), MessageDigest.getInstance("MD5"));
+				inputStream = new GZIPInputStream(digestInputStream);
+				XMLInputFactory factory = XMLInputFactory.newInstance();
+				factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+				// The reader closes its input at the end of the document, which would prevent reading the rest of the file for the checksum:
+				XMLStreamReader reader = factory.createXMLStreamReader(new FilterInputStream(inputStream) {
+					@Override
+					public void close() {
+					}
+				});
+				DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+				List<Node> batch = new ArrayList<Node>(BATCH_SIZE);
+				int hits = 0;
+				int misses = 0;
+				while (reader.hasNext()) {
+					if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+						String name = reader.getLocalName();
+						if (name.equals(MEDLINE_CITATION) || name.equals(DELETE_CITATION)) {
+							Document document = builder.newDocument();
+							document.appendChild(XmlTools.readElement(reader, document, name.equals(MEDLINE_CITATION) ? filter : null));
+							if (citationFilter != null && name.equals(MEDLINE_CITATION)) {
+								if (!citationFilter.accept(document.getDocumentElement())) {
+									misses++;
+									continue;
+								}
+								hits++;
+							}
+							batch.add(document.getDocumentElement());
+							if (batch.size() == BATCH_SIZE) {
+								statistics.addItems(batch.size());
+								long startWait = System.nanoTime();
+								ringBuffer.putAll(batch);
+								waiting += System.nanoTime() - startWait;
+								batch.clear();
+							}
+						}
+					}
+				}
+				reader.close();
+				// The parser may stop before the end of the compressed data, so read the rest of the file to complete the checksum:
+				byte[] buffer = new byte[65536];
+				while (digestInputStream.read(buffer) != -1)
+					;
+				checksum = toHex(digestInputStream.getMessageDigest().digest());
+				filterHits = citationFilter == null ? -1 : hits;
+				filterMisses = misses;
+				statistics.addItems(batch.size());
+				statistics.addBusyTime(System.nanoTime() - start - waiting);
+				ringBuffer.putAll(batch);
+			} catch (IOException e) {
+				error = true;
+				e.printStackTrace();
+			} catch (XMLStreamException e) {
+				error = true;
+				e.printStackTrace();
+			} catch (ParserConfigurationException e) {
+				error = true;
+				e.printStackTrace();
+			} catch (NoSuchAlgorithmException e) {
+				error = true;
+				e.printStackTrace();
+			} catch (RuntimeException e) {
+				error = true;
+				e.printStackTrace();
+			} finally {
+				if (inputStream != null)
+					try {
+						inputStream.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				// Always signal the end, so the consumer never waits for elements that will not come:
+				ringBuffer.close();
+			}
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+}
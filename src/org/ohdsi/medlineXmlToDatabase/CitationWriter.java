@@ -0,0 +1,283 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ohdsi.databases.ConnectionWrapper;
+import org.ohdsi.utilities.StringUtilities;
+import org.ohdsi.utilities.collections.OneToManyList;
+
+/**
+ * Writes parsed citations to the database. Any existing data for the same PMID and version is removed first, since a citation could be an update of a
+ * previous entry. Citations are collected and sent to the database in batches: first one set-based DELETE per table for all PMIDs in the batch, then all
+ * inserts. When a PmidPresenceBitmap is provided, only citations that might be in the database are deleted. An instance owns its connection, so
+ * different instances can write in parallel.<br>
+ * The transaction is committed when flush() is called. The PmidOrderedScheduler does this after getCitationsPerCommit() citations and whenever there is
+ * nothing else to write, or, if COMMIT_PER_FILE is true, when all citations of a file have been written. Without COMMIT_PER_FILE a batch is only sent
+ * when the transaction is committed, and if that fails the citations are written again one at a time, so only the problematic citations are lost. These
+ * are reported by takeDroppedCitations(), so their files are not recorded as completed. With COMMIT_PER_FILE batches of CITATIONS_PER_BATCH citations
+ * are sent as they are written, and a failure aborts the load, leaving the file unchanged.
+ * 
+ * @author MSCHUEMI
+ *
+ */
+public class CitationWriter {
+	
+	/**
+	 * Maximum number of citations written in one transaction. Use 1 to commit every citation separately.
+	 */
+	public static int				CITATIONS_PER_COMMIT	= 1000;
+	
+	/**
+	 * Write each file in a single transaction, so a file is either loaded completely or not at all.
+	 */
+	public static boolean			COMMIT_PER_FILE			= false;
+	
+	/**
+	 * Number of citations sent to the database in one go when COMMIT_PER_FILE is true.
+	 */
+	public static int				CITATIONS_PER_BATCH		= 1000;
+	
+	/**
+	 * Maximum number of PMIDs in one DELETE statement.
+	 */
+	public static int				PMIDS_PER_DELETE		= 1000;
+	
+	protected ConnectionWrapper		connectionWrapper;
+	protected List<String>			tables;
+	protected PmidPresenceBitmap	pmidPresenceBitmap;
+	private List<ParsedCitation>	citations				= new ArrayList<ParsedCitation>();
+	private Set<String>				pmidAndVersions			= new HashSet<String>();
+	private List<ParsedCitation>	sentCitations			= new ArrayList<ParsedCitation>();
+	private Set<String>				sentPmidAndVersions		= new HashSet<String>();
+	private boolean					inTransaction			= false;
+	private Set<String>				dropped					= new HashSet<String>();
+	
+	/**
+	 * @param connectionWrapper
+	 *            The connection to write to
+	 * @param tables
+	 *            The (unabbreviated) names of the medcit tables to write, normally all of them. The pmid_to_date table and the stored hashes are written
+	 *            together with the medcit table, so only if it is included.
+	 * @param pmidPresenceBitmap
+	 *            The citations currently in the database, shared by all writers. If null, the previous data of each citation is always deleted.
+	 */
+	public CitationWriter(ConnectionWrapper connectionWrapper, Set<String> tables, PmidPresenceBitmap pmidPresenceBitmap) {
+		this.connectionWrapper = connectionWrapper;
+		this.pmidPresenceBitmap = pmidPresenceBitmap;
+		this.tables = new ArrayList<String>();
+		for (String table : tables)
+			this.tables.add(Abbreviator.abbreviate(table));
+		if (this.tables.contains(Abbreviator.abbreviate("MedlineCitation"))) {
+			this.tables.add(PmidToDate.getTableName());
+			// Stored hashes must be removed together with their citation, also when unchanged citations are not skipped in this run:
+			if (connectionWrapper.getFieldInfo(CitationHashStore.getTableName()).size() != 0)
+				this.tables.add(CitationHashStore.getTableName());
+		}
+		connectionWrapper.setDateFormat();
+	}
+	
+	/**
+	 * For writers that hand the citations to other writers, and override all public methods.
+	 */
+	protected CitationWriter() {
+	}
+	
+	/**
+	 * @return The maximum number of citations that can be written before flush() must be called
+	 */
+	public int getCitationsPerCommit() {
+		return COMMIT_PER_FILE ? Integer.MAX_VALUE : CITATIONS_PER_COMMIT;
+	}
+	
+	public void write(ParsedCitation citation) {
+		// The same PMID and version twice in one batch would mean the second delete misses the rows of the first:
+		if (pmidAndVersions.contains(citation.pmid + "_" + citation.pmidVersion)) {
+			if (COMMIT_PER_FILE)
+				send();
+			else
+				flush();
+		}
+		citations.add(citation);
+		pmidAndVersions.add(citation.pmid + "_" + citation.pmidVersion);
+		if (COMMIT_PER_FILE && citations.size() >= CITATIONS_PER_BATCH)
+			send();
+	}
+	
+	/**
+	 * Writes all citations collected so far, and commits the transaction.
+	 */
+	public void flush() {
+		if (citations.size() == 0 && !inTransaction)
+			return;
+		List<ParsedCitation> transaction = COMMIT_PER_FILE ? null : new ArrayList<ParsedCitation>(citations);
+		try {
+			send();
+			commit();
+		} catch (RuntimeException e) {
+			rollback();
+			if (transaction == null)
+				throw e;
+			if (transaction.size() == 1) {
+				System.err.println("Problem inserting in to DB for PMID " + transaction.get(0).pmid + ": " + e.getMessage());
+				e.printStackTrace();
+				dropped.add(transaction.get(0).pmid + "_" + transaction.get(0).pmidVersion);
+			} else {
+				System.err.println("Problem inserting " + transaction.size() + " citations in to DB, retrying one citation at a time");
+				for (ParsedCitation citation : transaction)
+					try {
+						citations.add(citation);
+						send();
+						commit();
+					} catch (RuntimeException e2) {
+						rollback();
+						System.err.println("Problem inserting in to DB for PMID " + citation.pmid + ": " + e2.getMessage());
+						e2.printStackTrace();
+						dropped.add(citation.pmid + "_" + citation.pmidVersion);
+					}
+			}
+		}
+	}
+	
+	/**
+	 * @return The PMID and version (as PMID_version) of the citations that could not be written by the flush() calls since the last call to this method.
+	 *         The files containing them must not be recorded in the FileLedger, so they are loaded again in the next run
+	 */
+	public Set<String> takeDroppedCitations() {
+		Set<String> result = dropped;
+		dropped = new HashSet<String>();
+		return result;
+	}
+	
+	/**
+	 * Writes everything collected so far, and adds the file to the ledger in the same transaction, so the record is committed together with the last
+	 * citations of the file at the next flush().
+	 */
+	public void recordFile(FileLedger fileLedger, FileLedger.FileRecord fileRecord) {
+		send();
+		if (!inTransaction) {
+			connectionWrapper.setBatchMode(true);
+			inTransaction = true;
+		}
+		fileLedger.record(connectionWrapper, fileRecord);
+		connectionWrapper.executeBatch();
+	}
+	
+	/**
+	 * Inserts the rows of the citations. Called in batch mode, after the previous data of the citations has been deleted.
+	 */
+	protected void insert(List<ParsedCitation> citations) {
+		for (ParsedCitation citation : citations)
+			if (!citation.isDelete) {
+				for (TableRow row : citation.rows)
+					connectionWrapper.insertIntoTable(row.table, row.fields, row.values);
+				if (citation.dateRow != null)
+					connectionWrapper.insertIntoTable(citation.dateRow.table, citation.dateRow.fields, citation.dateRow.values);
+			}
+	}
+	
+	/**
+	 * Writes those citations that do not need their previous data deleted first. Called in batch mode, before the other citations are deleted and
+	 * inserted.
+	 * 
+	 * @return The citations that still need to be deleted and inserted
+	 */
+	protected List<ParsedCitation> revise(List<ParsedCitation> citations) {
+		return citations;
+	}
+	
+	/**
+	 * Sends the collected citations to the database, without committing.
+	 */
+	private void send() {
+		if (citations.size() == 0)
+			return;
+		if (!inTransaction) {
+			connectionWrapper.setBatchMode(true);
+			inTransaction = true;
+		}
+		List<ParsedCitation> replacedCitations = revise(citations);
+		deleteAllForPmidAndVersions(replacedCitations);
+		connectionWrapper.executeBatch();
+		insert(replacedCitations);
+		connectionWrapper.executeBatch();
+		for (ParsedCitation citation : citations) {
+			// Only keep what is needed to update the bitmap, so the rows can be garbage collected:
+			ParsedCitation sentCitation = new ParsedCitation(citation.pmid, citation.pmidVersion);
+			sentCitation.isDelete = citation.isDelete;
+			sentCitations.add(sentCitation);
+		}
+		sentPmidAndVersions.addAll(pmidAndVersions);
+		citations.clear();
+		pmidAndVersions.clear();
+	}
+	
+	private void commit() {
+		if (inTransaction) {
+			connectionWrapper.setBatchMode(false);
+			inTransaction = false;
+		}
+		if (pmidPresenceBitmap != null)
+			for (ParsedCitation citation : sentCitations)
+				pmidPresenceBitmap.set(citation.pmid, citation.pmidVersion, !citation.isDelete);
+		sentCitations.clear();
+		sentPmidAndVersions.clear();
+	}
+	
+	private void rollback() {
+		if (inTransaction) {
+			connectionWrapper.rollback();
+			inTransaction = false;
+		}
+		citations.clear();
+		pmidAndVersions.clear();
+		sentCitations.clear();
+		sentPmidAndVersions.clear();
+	}
+	
+	/**
+	 * @return False if the citation is certainly not in the database, so its previous data does not need to be deleted
+	 */
+	protected boolean mightBeInDatabase(ParsedCitation citation) {
+		if (sentPmidAndVersions.contains(citation.pmid + "_" + citation.pmidVersion))
+			return true;
+		return pmidPresenceBitmap == null || pmidPresenceBitmap.contains(citation.pmid, citation.pmidVersion);
+	}
+	
+	/**
+	 * Records could be updates of previous entries, and deleted citations must be removed, so all previous data of the citations is removed. Uses one
+	 * statement per table and version (almost all citations have version 1) for every PMIDS_PER_DELETE citations. Citations that are certainly not in the
+	 * database are skipped.
+	 */
+	private void deleteAllForPmidAndVersions(List<ParsedCitation> citations) {
+		OneToManyList<String, String> versionToPmids = new OneToManyList<String, String>();
+		for (ParsedCitation citation : citations)
+			if (mightBeInDatabase(citation))
+				versionToPmids.put(citation.pmidVersion, citation.pmid);
+		for (String pmid_version : versionToPmids.keySet()) {
+			List<String> pmids = versionToPmids.get(pmid_version);
+			for (int start = 0; start < pmids.size(); start += PMIDS_PER_DELETE) {
+				String pmidList = StringUtilities.join(pmids.subList(start, Math.min(start + PMIDS_PER_DELETE, pmids.size())), ",");
+				for (String table : tables)
+					connectionWrapper.execute("DELETE FROM " + table + " WHERE pmid_version = " + pmid_version + " AND pmid IN (" + pmidList + ")");
+			}
+		}
+	}
+}
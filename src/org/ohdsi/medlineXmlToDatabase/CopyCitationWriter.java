@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.Set;
+
+import org.ohdsi.databases.ConnectionWrapper;
+import org.ohdsi.databases.ConnectionWrapper.FieldInfo;
+import org.ohdsi.databases.DbType;
+
+/**
+ * Writes parsed citations to a PostgreSQL database using COPY FROM STDIN. Because a connection can only have one COPY in progress, the rows are collected
+ * per table, and each table's rows are loaded with a single COPY statement in the text format.
+ * 
+ * @author MSCHUEMI
+ *
+ */
+public class CopyCitationWriter extends BulkCitationWriter {
+	
+	/**
+	 * @param connectionWrapper
+	 *            The connection to write to. Must be a PostgreSQL connection.
+	 * @param tables
+	 *            The (unabbreviated) names of the medcit tables to write
+	 * @param pmidPresenceBitmap
+	 *            The citations currently in the database, shared by all writers. Can be null.
+	 */
+	public CopyCitationWriter(ConnectionWrapper connectionWrapper, Set<String> tables, PmidPresenceBitmap pmidPresenceBitmap) {
+		super(connectionWrapper, tables, pmidPresenceBitmap);
+		if (!connectionWrapper.getDbType().equals(DbType.POSTGRESQL))
+			throw new RuntimeException("COPY can only be used with PostgreSQL");
+	}
+	
+	@Override
+	protected void load(String table, List<FieldInfo> fieldInfos, List<Object[]> rows) {
+		StringBuilder sql = new StringBuilder();
+		sql.append("COPY ");
+		sql.append(table);
+		sql.append(" (");
+		for (int i = 0; i < fieldInfos.size(); i++) {
+			if (i != 0)
+				sql.append(",");
+			sql.append(fieldInfos.get(i).name);
+		}
+		sql.append(") FROM STDIN");
+		
+		StringBuilder text = new StringBuilder();
+		for (Object[] row : rows) {
+			for (int i = 0; i < row.length; i++) {
+				if (i != 0)
+					text.append('\t');
+				if (row[i] == null)
+					text.append("\\N");
+				else
+					escape(row[i].toString(), text);
+			}
+			text.append('\n');
+		}
+		connectionWrapper.copyIn(sql.toString(), new StringReader(text.toString()));
+	}
+	
+	private static void escape(String value, StringBuilder text) {
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			if (ch == '\\')
+				text.append("\\\\");
+			else if (ch == '\t')
+				text.append("\\t");
+			else if (ch == '\n')
+				text.append("\\n");
+			else if (ch == '\r')
+				text.append("\\r");
+			else
+				text.append(ch);
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ohdsi.databases.ConnectionWrapper;
+import org.ohdsi.utilities.StringUtilities;
+import org.ohdsi.utilities.collections.OneToManyList;
+import org.ohdsi.utilities.files.Row;
+
+/**
+ * Writes revised citations by changing only what is different from the rows already in the database, instead of deleting and re-inserting all rows.
+ * For every batch, the existing rows of the citations that might be in the database are fetched with one query per table and version. Rows are matched
+ * on their primary key (PMID, PMID_Version and the order fields). New rows are inserted, rows that are no longer there are deleted, and for rows that
+ * have changed only the changed fields are updated. Citations that are not in the database and deleted citations are written as by the CitationWriter.
+ * <br>
+ * Values are compared as text, the way they are returned by the database. Empty text and NULL are considered equal.
+ *
+ * @author MSCHUEMI
+ *
+ */
+public class DiffCitationWriter extends CitationWriter {
+
+	private static AtomicLong					insertedRows	= new AtomicLong();
+	private static AtomicLong					updatedRows		= new AtomicLong();
+	private static AtomicLong					deletedRows		= new AtomicLong();
+	private static AtomicLong					unchangedRows	= new AtomicLong();
+
+	private Map<String, TableStructure>			tableToStructure	= new HashMap<String, TableStructure>();
+
+	/**
+	 * @param connectionWrapper
+	 *            The connection to write to
+	 * @param tables
+	 *            The (unabbreviated) names of the medcit tables to write
+	 * @param pmidPresenceBitmap
+	 *            The citations currently in the database, shared by all writers. If null, the existing rows are fetched for every citation.
+	 */
+	public DiffCitationWriter(ConnectionWrapper connectionWrapper, Set<String> tables, PmidPresenceBitmap pmidPresenceBitmap) {
+		super(connectionWrapper, tables, pmidPresenceBitmap);
+		for (String table : this.tables)
+			tableToStructure.put(table, new TableStructure(connectionWrapper, table));
+	}
+
+	/**
+	 * @return The number of rows inserted, updated, deleted and left unchanged by all DiffCitationWriters so far
+	 */
+	public static String getStatistics() {
+		return "Revised rows: " + insertedRows + " inserted, " + updatedRows + " updated, " + deletedRows + " deleted, " + unchangedRows + " unchanged";
+	}
+
+	@Override
+	protected List<ParsedCitation> revise(List<ParsedCitation> citations) {
+		List<ParsedCitation> revisedCitations = new ArrayList<ParsedCitation>();
+		List<ParsedCitation> replacedCitations = new ArrayList<ParsedCitation>();
+		for (ParsedCitation citation : citations)
+			if (!citation.isDelete && mightBeInDatabase(citation))
+				revisedCitations.add(citation);
+			else
+				replacedCitations.add(citation);
+		if (revisedCitations.size() != 0) {
+			Map<String, Map<String, Map<String, Row>>> existingRows = fetchExistingRows(revisedCitations);
+			for (ParsedCitation citation : revisedCitations)
+				revise(citation, existingRows.get(citation.pmid + "_" + citation.pmidVersion));
+		}
+		return replacedCitations;
+	}
+
+	/**
+	 * @return For each citation (PMID and version separated by an underscore), for each table, the existing rows by primary key
+	 */
+	private Map<String, Map<String, Map<String, Row>>> fetchExistingRows(List<ParsedCitation> citations) {
+		Map<String, Map<String, Map<String, Row>>> citationToTableToRows = new HashMap<String, Map<String, Map<String, Row>>>();
+		OneToManyList<String, String> versionToPmids = new OneToManyList<String, String>();
+		for (ParsedCitation citation : citations)
+			versionToPmids.put(citation.pmidVersion, citation.pmid);
+		for (String pmid_version : versionToPmids.keySet()) {
+			List<String> pmids = versionToPmids.get(pmid_version);
+			for (int start = 0; start < pmids.size(); start += PMIDS_PER_DELETE) {
+				String pmidList = StringUtilities.join(pmids.subList(start, Math.min(start + PMIDS_PER_DELETE, pmids.size())), ",");
+				for (TableStructure structure : tableToStructure.values())
+					for (Row row : connectionWrapper.query("SELECT * FROM " + structure.table + " WHERE pmid_version = " + pmid_version + " AND pmid IN ("
+							+ pmidList + ")")) {
+						String citationKey = row.get("pmid") + "_" + row.get("pmid_version");
+						Map<String, Map<String, Row>> tableToRows = citationToTableToRows.get(citationKey);
+						if (tableToRows == null) {
+							tableToRows = new HashMap<String, Map<String, Row>>();
+							citationToTableToRows.put(citationKey, tableToRows);
+						}
+						Map<String, Row> rows = tableToRows.get(structure.table);
+						if (rows == null) {
+							rows = new HashMap<String, Row>();
+							tableToRows.put(structure.table, rows);
+						}
+						rows.put(structure.getKey(row), row);
+					}
+			}
+		}
+		return citationToTableToRows;
+	}
+
+	private void revise(ParsedCitation citation, Map<String, Map<String, Row>> tableToExistingRows) {
+		Map<String, Map<String, TableRow>> tableToNewRows = new HashMap<String, Map<String, TableRow>>();
+		List<TableRow> newRows = new ArrayList<TableRow>(citation.rows);
+		if (citation.dateRow != null)
+			newRows.add(citation.dateRow);
+		for (TableRow row : newRows) {
+			Map<String, TableRow> rows = tableToNewRows.get(row.table);
+			if (rows == null) {
+				rows = new HashMap<String, TableRow>();
+				tableToNewRows.put(row.table, rows);
+			}
+			rows.put(tableToStructure.get(row.table).getKey(row), row);
+		}
+		for (TableStructure structure : tableToStructure.values()) {
+			Map<String, TableRow> rows = tableToNewRows.get(structure.table);
+			Map<String, Row> existingRows = tableToExistingRows == null ? null : tableToExistingRows.get(structure.table);
+			if (rows != null)
+				for (Map.Entry<String, TableRow> entry : rows.entrySet()) {
+					Row existingRow = existingRows == null ? null : existingRows.remove(entry.getKey());
+					if (existingRow == null) {
+						connectionWrapper.insertIntoTable(structure.table, entry.getValue().fields, entry.getValue().values);
+						insertedRows.incrementAndGet();
+					} else
+						update(structure, entry.getValue(), existingRow);
+				}
+			if (existingRows != null)
+				for (Row existingRow : existingRows.values()) {
+					delete(structure, existingRow);
+					deletedRows.incrementAndGet();
+				}
+		}
+	}
+
+	private void update(TableStructure structure, TableRow row, Row existingRow) {
+		List<String> changedFields = new ArrayList<String>();
+		List<Object> values = new ArrayList<Object>();
+		for (String field : structure.fields)
+			if (!structure.primaryKey.contains(field)) {
+				Object value = row.get(field);
+				String newValue = value == null ? "" : value.toString();
+				if (!newValue.equals(existingRow.get(field))) {
+					changedFields.add(field);
+					values.add(value);
+				}
+			}
+		if (changedFields.size() == 0) {
+			unchangedRows.incrementAndGet();
+			return;
+		}
+		StringBuilder sql = new StringBuilder();
+		sql.append("UPDATE " + structure.table + " SET ");
+		for (int i = 0; i < changedFields.size(); i++) {
+			if (i != 0)
+				sql.append(", ");
+			sql.append(changedFields.get(i) + " = ?");
+		}
+		sql.append(structure.getWhereClause());
+		for (String field : structure.primaryKey)
+			values.add(row.get(field));
+		List<String> parameterFields = new ArrayList<String>(changedFields);
+		parameterFields.addAll(structure.primaryKey);
+		connectionWrapper.executePrepared(sql.toString(), values, connectionWrapper.getFieldTypes(structure.table, parameterFields));
+		updatedRows.incrementAndGet();
+	}
+
+	private void delete(TableStructure structure, Row existingRow) {
+		List<Object> values = new ArrayList<Object>();
+		for (String field : structure.primaryKey)
+			values.add(Long.parseLong(existingRow.get(field)));
+		connectionWrapper.executePrepared("DELETE FROM " + structure.table + structure.getWhereClause(), values,
+				connectionWrapper.getFieldTypes(structure.table, structure.primaryKey));
+	}
+}
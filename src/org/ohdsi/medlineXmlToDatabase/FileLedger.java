@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ohdsi.databases.ConnectionWrapper;
+import org.ohdsi.databases.DbType;
+import org.ohdsi.utilities.files.Row;
+
+/**
+ * Keeps track of the xml.gz files that have been loaded completely, in the processed_file table. For each file the name, size, MD5 checksum, number of
+ * citations and time of completion are recorded. When parsing is restarted, the XMLFileIterator skips the files in the ledger that still have the same
+ * size and checksum, so only the files that were in flight when the previous run stopped, and files that have been replaced since, are processed again. Because all operations on a PMID are applied in file
+ * order and files are recorded in filename order, processing those files again gives the same result.
+ *
+ * @author MSCHUEMI
+ *
+ */
+public class FileLedger {
+
+	private static String				tableName		= "processed_file";
+
+	private ConnectionWrapper			connectionWrapper;
+	private Map<String, FileRecord>		fileToRecord	= new HashMap<String, FileRecord>();
+
+	/**
+	 * A file that has been loaded completely.
+	 */
+	public static class FileRecord {
+		public String	fileName;
+		public long		size;
+		public String	checksum;
+		public int		citations;
+
+		public FileRecord(String fileName, long size, String checksum, int citations) {
+			this.fileName = fileName;
+			this.size = size;
+			this.checksum = checksum;
+			this.citations = citations;
+		}
+	}
+
+	public static String getTableName() {
+		return tableName;
+	}
+
+	public static void createTable(ConnectionWrapper connectionWrapper) {
+		List<String> fields = new ArrayList<String>();
+		List<String> types = new ArrayList<String>();
+		fields.add("file_name");
+		types.add("varchar(255)");
+
+		fields.add("file_size");
+		types.add("bigint");
+
+		fields.add("checksum");
+		types.add("varchar(32)");
+
+		fields.add("citations");
+		types.add("int");
+
+		fields.add("completed");
+		types.add(connectionWrapper.getDbType().equals(DbType.MSSQL) ? "datetime" : "timestamp");
+
+		List<String> primaryKey = new ArrayList<String>();
+		primaryKey.add("file_name");
+
+		connectionWrapper.createTable(tableName, fields, types, primaryKey);
+	}
+
+	/**
+	 * Reads the ledger from the database, creating the table if it does not exist yet.
+	 *
+	 * @param connectionWrapper
+	 *            A connection used only by the ledger, on which records are committed immediately
+	 */
+	public static FileLedger load(ConnectionWrapper connectionWrapper) {
+		FileLedger fileLedger = new FileLedger();
+		fileLedger.connectionWrapper = connectionWrapper;
+		if (connectionWrapper.getFieldInfo(tableName).size() == 0) {
+			System.out.println("Creating table " + tableName);
+			createTable(connectionWrapper);
+		} else {
+			for (Row row : connectionWrapper.query("SELECT file_name, file_size, checksum, citations FROM " + tableName))
+				fileLedger.fileToRecord.put(row.get("file_name"), new FileRecord(row.get("file_name"), Long.parseLong(row.get("file_size")), row.get("checksum"),
+						Integer.parseInt(row.get("citations"))));
+			System.out.println(fileLedger.fileToRecord.size() + " files in " + tableName);
+		}
+		return fileLedger;
+	}
+
+	/**
+	 * @return True if the file is in the ledger, and still has the same size and checksum. The checksum is only computed if the size is the same, so a
+	 *         replaced file of the same size is read once more than a changed one
+	 */
+	public boolean isCompleted(File file) {
+		FileRecord fileRecord;
+		synchronized (this) {
+			fileRecord = fileToRecord.get(file.getName());
+		}
+		if (fileRecord == null || fileRecord.size != file.length() || fileRecord.checksum == null)
+			return false;
+		return fileRecord.checksum.equals(computeChecksum(file));
+	}
+
+	/**
+	 * @return The MD5 checksum of the (compressed) file, as a hexadecimal string, the same as CitationIterator.getChecksum()
+	 */
+	public static String computeChecksum(File file) {
+		try {
+			MessageDigest messageDigest = MessageDigest.getInstance("MD5");
+			InputStream inputStream = new FileInputStream(file);
+			try {
+				byte[] buffer = new byte[65536];
+				int length;
+				while ((length = inputStream.read(buffer)) != -1)
+					messageDigest.update(buffer, 0, length);
+			} finally {
+				inputStream.close();
+			}
+			return CitationIterator.toHex(messageDigest.digest());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Records the file on the ledger's own connection, and commits.
+	 */
+	public void record(FileRecord fileRecord) {
+		record(connectionWrapper, fileRecord);
+	}
+
+	/**
+	 * Records the file on the given connection. In batch mode the record becomes part of the current transaction, so it is committed together with the
+	 * data of the file.
+	 */
+	public void record(ConnectionWrapper connectionWrapper, FileRecord fileRecord) {
+		connectionWrapper.execute("DELETE FROM " + tableName + " WHERE file_name = '" + fileRecord.fileName.replaceAll("'", "''") + "'");
+		List<String> fields = new ArrayList<String>();
+		List<Object> values = new ArrayList<Object>();
+		fields.add("file_name");
+		values.add(fileRecord.fileName);
+		fields.add("file_size");
+		values.add(fileRecord.size);
+		fields.add("checksum");
+		values.add(fileRecord.checksum);
+		fields.add("citations");
+		values.add(fileRecord.citations);
+		fields.add("completed");
+		values.add(new Timestamp(System.currentTimeMillis()));
+		connectionWrapper.insertIntoTable(tableName, fields, values);
+		synchronized (this) {
+			fileToRecord.put(fileRecord.fileName, fileRecord);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.ohdsi.databases.ConnectionWrapper;
+import org.ohdsi.databases.ConnectionWrapper.FieldInfo;
+import org.ohdsi.utilities.StringUtilities;
+import org.ohdsi.utilities.concurrency.DatabaseThreads;
+import org.ohdsi.utilities.files.ReadTextFile;
+
+/**
+ * Builds the primary keys and the indexes in the index file after the data has been loaded into tables that were created without them (see
+ * DEFER_INDEXES). Primary keys and indexes that already exist are skipped, as are indexes on tables that do not exist. All statements on one table are
+ * executed one after the other on the same connection, while different tables are processed in parallel, one table per connection. The threads are
+ * created by DatabaseThreads, and each statement counts as one call towards MAX_DATABASE_CALLS.
+ *
+ * @author Schuemie
+ *
+ */
+public class IndexBuilder {
+
+	private static Pattern					createIndexPattern	= Pattern.compile("CREATE\\s+(UNIQUE\\s+)?INDEX\\s+(\\w+)\\s+ON\\s+(\\w+)",
+																		Pattern.CASE_INSENSITIVE);
+
+	private Map<String, List<IndexStatement>>	table2Statements	= new LinkedHashMap<String, List<IndexStatement>>();
+
+	/**
+	 * Determines which primary keys and indexes are missing.
+	 *
+	 * @param connectionWrapper
+	 *            Connection used to inspect the existing tables
+	 * @param tables
+	 *            The (unabbreviated) names of all medcit tables. The pmid_to_date table is added automatically
+	 * @param indexFile
+	 *            File with CREATE INDEX statements, such as Indices.sql. Can be null or empty if only primary keys need to be built
+	 */
+	public IndexBuilder(ConnectionWrapper connectionWrapper, Set<String> tables, String indexFile) {
+		List<String> abbreviatedTables = new ArrayList<String>();
+		for (String table : tables)
+			abbreviatedTables.add(Abbreviator.abbreviate(table));
+		abbreviatedTables.add(PmidToDate.getTableName());
+		for (String table : abbreviatedTables)
+			if (!connectionWrapper.hasPrimaryKey(table)) {
+				List<String> fields = new ArrayList<String>();
+				for (FieldInfo fieldInfo : connectionWrapper.getFieldInfo(table))
+					fields.add(fieldInfo.name);
+				String primaryKey = StringUtilities.join(MedlineCitationAnalyser.getPrimaryKey(fields), ",");
+				addStatement(table, "primary key on " + table, "ALTER TABLE " + table + " ADD PRIMARY KEY (" + primaryKey + ")");
+			}
+		if (indexFile != null && indexFile.length() != 0) {
+			if (new File(indexFile).exists())
+				addIndexStatements(connectionWrapper, indexFile);
+			else
+				System.out.println("Index file " + indexFile + " not found, only building primary keys");
+		}
+	}
+
+	private void addIndexStatements(ConnectionWrapper connectionWrapper, String indexFile) {
+		StringBuilder script = new StringBuilder();
+		for (String line : new ReadTextFile(indexFile)) {
+			int comment = line.indexOf("--");
+			if (comment != -1)
+				line = line.substring(0, comment);
+			script.append(line);
+			script.append('\n');
+		}
+		for (String sql : script.toString().split(";")) {
+			sql = sql.trim();
+			if (sql.length() == 0)
+				continue;
+			Matcher matcher = createIndexPattern.matcher(sql);
+			if (!matcher.find()) {
+				System.out.println("Skipping statement in index file that does not create an index: " + sql);
+				continue;
+			}
+			String index = matcher.group(2).toLowerCase();
+			String table = matcher.group(3).toLowerCase();
+			if (connectionWrapper.getFieldInfo(table).size() == 0)
+				System.out.println("Skipping index " + index + " because table " + table + " does not exist");
+			else if (connectionWrapper.getIndexNames(table).contains(index))
+				System.out.println("Skipping index " + index + " because it already exists");
+			else
+				addStatement(table, "index " + index, sql);
+		}
+	}
+
+	private void addStatement(String table, String description, String sql) {
+		List<IndexStatement> statements = table2Statements.get(table);
+		if (statements == null) {
+			statements = new ArrayList<IndexStatement>();
+			table2Statements.put(table, statements);
+		}
+		statements.add(new IndexStatement(description, sql));
+	}
+
+	/**
+	 * Executes all statements, using one thread per connection.
+	 */
+	public void build(List<ConnectionWrapper> connectionWrappers) {
+		int count = 0;
+		for (List<IndexStatement> statements : table2Statements.values())
+			count += statements.size();
+		if (count == 0) {
+			System.out.println("No primary keys or indexes to build");
+			return;
+		}
+		System.out.println("Building " + count + " primary keys and indexes on " + table2Statements.size() + " tables using " + connectionWrappers.size()
+				+ " connections");
+		long start = System.currentTimeMillis();
+		ConcurrentLinkedQueue<List<IndexStatement>> queue = new ConcurrentLinkedQueue<List<IndexStatement>>(table2Statements.values());
+		List<BuildThread> threads = new ArrayList<BuildThread>();
+		for (ConnectionWrapper connectionWrapper : connectionWrappers) {
+			BuildThread thread = new BuildThread(connectionWrapper, queue);
+			thread.thread = DatabaseThreads.newThread(thread, "Index builder " + threads.size());
+			thread.thread.start();
+			threads.add(thread);
+		}
+		int failed = 0;
+		for (BuildThread thread : threads) {
+			try {
+				thread.thread.join();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			failed += thread.failed;
+		}
+		System.out.println("Finished building primary keys and indexes in " + (System.currentTimeMillis() - start) / 1000 + "s"
+				+ (failed == 0 ? "" : ", " + failed + " failed"));
+	}
+
+	private static class IndexStatement {
+		public String	description;
+		public String	sql;
+
+		public IndexStatement(String description, String sql) {
+			this.description = description;
+			this.sql = sql;
+		}
+	}
+
+	private static class BuildThread implements Runnable {
+		public Thread										thread;
+		private ConnectionWrapper							connectionWrapper;
+		private ConcurrentLinkedQueue<List<IndexStatement>>	queue;
+		public int											failed	= 0;
+
+		public BuildThread(ConnectionWrapper connectionWrapper, ConcurrentLinkedQueue<List<IndexStatement>> queue) {
+			this.connectionWrapper = connectionWrapper;
+			this.queue = queue;
+		}
+
+		@Override
+		public void run() {
+			List<IndexStatement> statements;
+			while ((statements = queue.poll()) != null)
+				for (IndexStatement statement : statements) {
+					long start = System.currentTimeMillis();
+					DatabaseThreads.startCall();
+					try {
+						connectionWrapper.execute(statement.sql);
+						System.out.println("Created " + statement.description + " in " + (System.currentTimeMillis() - start) + "ms");
+					} catch (RuntimeException e) {
+						failed++;
+						System.err.println("Failed to create " + statement.description + " after " + (System.currentTimeMillis() - start) + "ms");
+					} finally {
+						DatabaseThreads.endCall();
+					}
+				}
+		}
+	}
+}
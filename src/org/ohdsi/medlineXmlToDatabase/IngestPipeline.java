@@ -0,0 +1,401 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.ohdsi.utilities.XmlTools;
+import org.ohdsi.utilities.XmlTools.ElementFilter;
+import org.ohdsi.utilities.concurrency.StageStatistics;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Loads all citations from an XMLFileIterator into the database using three concurrent stages, connected by bounded queues:
+ * <ol>
+ * <li>Decode: decompressing and parsing the XML files (done by the XMLFileIterator's decode threads), and grouping the citations into batches</li>
+ * <li>Transform: converting citations into database rows, using TRANSFORM_THREADS threads that each have their own parser. If FORK_JOIN_THREADS is set,
+ * each batch is also split into chunks of SPLIT_SIZE citations that are transformed in parallel by a work-stealing ForkJoinPool, so even the batches of a
+ * single file use all cores. Each pool thread has its own parser, and the chunks are merged back in file order</li>
+ * <li>Write: writing the rows to the database, using one thread per CitationWriter, scheduled by a PmidOrderedScheduler</li>
+ * </ol>
+ * When a queue is full the stage feeding it blocks, so the slowest stage determines the throughput. Batches may finish transforming out of order, but are
+ * put back in their original order before they are handed to the scheduler, so updates and deletes of the same PMID are applied in the same sequence as
+ * they appear in the files. After each file the busy time of each stage and the queue depths are reported, to show which stage is the bottleneck.
+ * 
+ * @author MSCHUEMI
+ *
+ */
+public class IngestPipeline implements PmidOrderedScheduler.FileCompletionListener {
+	
+	/**
+	 * Number of threads converting citations into rows.
+	 */
+	public static int						TRANSFORM_THREADS	= 1;
+	
+	/**
+	 * Maximum number of batches waiting in each of the queues between stages.
+	 */
+	public static int						QUEUE_SIZE			= 10;
+	
+	/**
+	 * Maximum number of citations per batch.
+	 */
+	public static int						CITATIONS_PER_BATCH	= 1000;
+	
+	/**
+	 * Number of threads in the ForkJoinPool that transforms the chunks of each batch. Zero means each batch is transformed by one transform thread.
+	 */
+	public static int						FORK_JOIN_THREADS	= 0;
+	
+	/**
+	 * Maximum number of citations in a chunk that is transformed without splitting it further.
+	 */
+	public static int						SPLIT_SIZE			= 100;
+	
+	private static CitationBatch			END					= new CitationBatch(null, -1);
+	
+	private MedlineCitationParser			medlineCitationParser;
+	private List<CitationWriter>			citationWriters;
+	private FileLedger						fileLedger;
+	private VersionConsolidator				versionConsolidator;
+	private CitationHashStore				citationHashStore;
+	private long							unchanged			= 0;
+	private Map<String, int[]>				fileToFilterCounts	= new ConcurrentHashMap<String, int[]>();
+	private PmidOrderedScheduler			scheduler;
+	private long							fileStart;
+	private int								transformThreads;
+	private BlockingQueue<CitationBatch>	transformQueue;
+	private BlockingQueue<CitationBatch>	writeQueue;
+	private StageStatistics					decodeStatistics;
+	private StageStatistics					transformStatistics;
+	private ForkJoinPool					forkJoinPool;
+	private ThreadLocal<Transformer>		poolTransformers;
+	private ElementFilter					elementFilter;
+	
+	/**
+	 * @param medlineCitationParser
+	 *            A parser holding the table structure. Each transform thread will use its own copy.
+	 * @param citationWriters
+	 *            The writers used by the write stage, each with its own connection
+	 * @param fileLedger
+	 *            The ledger in which completely loaded files are recorded. Can be null
+	 * @param versionConsolidator
+	 *            If provided, citations that are superseded by a later occurrence of the same PMID and version are not written. Can be null
+	 * @param citationHashStore
+	 *            If provided, citations are not written if their content is the same as what is in the database. The hash covers the complete citation,
+	 *            so the files must then be read without an element filter. The element filter of the parser is applied after computing the hash. Can
+	 *            be null
+	 */
+	public IngestPipeline(MedlineCitationParser medlineCitationParser, List<CitationWriter> citationWriters, FileLedger fileLedger,
+			VersionConsolidator versionConsolidator, CitationHashStore citationHashStore) {
+		this.medlineCitationParser = medlineCitationParser;
+		this.citationWriters = citationWriters;
+		this.fileLedger = fileLedger;
+		this.versionConsolidator = versionConsolidator;
+		this.citationHashStore = citationHashStore;
+		if (citationHashStore != null)
+			elementFilter = medlineCitationParser.getElementFilter();
+		transformThreads = Math.max(1, TRANSFORM_THREADS);
+		transformQueue = new ArrayBlockingQueue<CitationBatch>(QUEUE_SIZE);
+		writeQueue = new ArrayBlockingQueue<CitationBatch>(QUEUE_SIZE);
+		transformStatistics = new StageStatistics("Transform", transformThreads);
+	}
+	
+	/**
+	 * Processes all files in the iterator. Returns when all citations have been written.
+	 */
+	public void run(XMLFileIterator iterator) {
+		decodeStatistics = iterator.getStatistics();
+		scheduler = new PmidOrderedScheduler(citationWriters, this, CitationWriter.COMMIT_PER_FILE, fileLedger);
+		fileStart = System.currentTimeMillis();
+		if (FORK_JOIN_THREADS > 0) {
+			forkJoinPool = new ForkJoinPool(FORK_JOIN_THREADS);
+			poolTransformers = new ThreadLocal<Transformer>() {
+				@Override
+				protected Transformer initialValue() {
+					return new Transformer();
+				}
+			};
+		}
+		startThread(new BatchingThread(iterator), "Batcher");
+		for (int i = 0; i < transformThreads; i++)
+			startThread(new TransformThread(), "Transformer " + i);
+		try {
+			write();
+		} finally {
+			if (forkJoinPool != null)
+				forkJoinPool.shutdown();
+		}
+	}
+	
+	private void startThread(Thread thread, String name) {
+		thread.setName(name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Hands the transformed batches to the scheduler in their original order.
+	 */
+	private void write() {
+		Map<Long, CitationBatch> pending = new HashMap<Long, CitationBatch>();
+		long nextSequenceNumber = 0;
+		int ended = 0;
+		while (ended < transformThreads) {
+			CitationBatch batch = take(writeQueue);
+			if (batch == END) {
+				ended++;
+				continue;
+			}
+			pending.put(batch.sequenceNumber, batch);
+			while ((batch = pending.remove(nextSequenceNumber)) != null) {
+				nextSequenceNumber++;
+				if (batch.failure != null)
+					throw new RuntimeException("Error processing " + batch.fileName, batch.failure);
+				submit(batch);
+				if (batch.lastOfFile) {
+					if (batch.filterHits != -1)
+						fileToFilterCounts.put(batch.fileName, new int[] { batch.filterHits, batch.filterMisses });
+					scheduler.fileSubmitted(batch.fileName, batch.fileError, batch.fileSize, batch.checksum);
+				}
+			}
+		}
+		scheduler.finish();
+		if (versionConsolidator != null)
+			System.out.println("Skipped " + versionConsolidator.getSuperseded() + " superseded citations");
+		if (citationHashStore != null)
+			System.out.println("Skipped " + unchanged + " unchanged citations");
+	}
+	
+	/**
+	 * Submits the citations of the batch to the scheduler, except those that are superseded or unchanged. The stored hashes are fetched in one go for the
+	 * whole batch. PMIDs with operations that have not been committed yet are not looked up, since their stored hash may be about to change. Only this
+	 * thread submits operations, so for the other PMIDs the stored hash stays valid, unless the PMID occurs again in the same batch.
+	 */
+	private void submit(CitationBatch batch) {
+		List<ParsedCitation> citations = new ArrayList<ParsedCitation>(batch.citations.size());
+		for (ParsedCitation citation : batch.citations)
+			if (versionConsolidator == null || versionConsolidator.isFinal(citation))
+				citations.add(citation);
+		Map<String, Long> storedHashes = null;
+		Set<String> submittedPmids = null;
+		if (citationHashStore != null) {
+			List<ParsedCitation> lookups = new ArrayList<ParsedCitation>();
+			for (ParsedCitation citation : citations)
+				if (citation.contentHash != null && !scheduler.isPending(citation.pmid))
+					lookups.add(citation);
+			storedHashes = citationHashStore.lookup(lookups);
+			submittedPmids = new HashSet<String>();
+		}
+		for (ParsedCitation citation : citations) {
+			if (storedHashes != null) {
+				if (citation.contentHash != null && !submittedPmids.contains(citation.pmid)
+						&& citation.contentHash.equals(storedHashes.get(citation.pmid + "_" + citation.pmidVersion))) {
+					unchanged++;
+					continue;
+				}
+				submittedPmids.add(citation.pmid);
+			}
+			scheduler.submit(batch.fileName, citation);
+		}
+	}
+	
+	@Override
+	public void fileCompleted(String fileName, int citations, boolean fileError) {
+		if (fileError)
+			System.err.println("Warning: " + fileName + " could not be read completely");
+		System.out.println(citations + " citations in " + fileName + " (" + (System.currentTimeMillis() - fileStart) + "ms)");
+		int[] filterCounts = fileToFilterCounts.remove(fileName);
+		if (filterCounts != null)
+			System.out.println("- Citation filter: " + filterCounts[0] + " passed, " + filterCounts[1] + " dropped");
+		System.out.println("- " + decodeStatistics);
+		System.out.println("- " + transformStatistics);
+		System.out.println("- " + scheduler.getStatistics());
+		System.out.println("- Queue depths: transform " + transformQueue.size() + "/" + QUEUE_SIZE + ", write " + writeQueue.size() + "/" + QUEUE_SIZE
+				+ ", scheduled " + scheduler.getPending() + "/" + PmidOrderedScheduler.MAX_PENDING);
+		fileStart = System.currentTimeMillis();
+	}
+	
+	private static CitationBatch take(BlockingQueue<CitationBatch> queue) {
+		try {
+			return queue.take();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static void put(BlockingQueue<CitationBatch> queue, CitationBatch batch) {
+		try {
+			queue.put(batch);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Reads the citations from the files in order, and groups them into batches for the transform stage.
+	 */
+	private class BatchingThread extends Thread {
+		private XMLFileIterator	iterator;
+		private long			sequenceNumber	= 0;
+		
+		public BatchingThread(XMLFileIterator iterator) {
+			this.iterator = iterator;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (iterator.hasNext()) {
+					CitationIterator citationIterator = iterator.next();
+					CitationBatch batch = new CitationBatch(citationIterator.getFileName(), sequenceNumber++);
+					while (citationIterator.hasNext()) {
+						batch.nodes.add(citationIterator.next());
+						if (batch.nodes.size() == CITATIONS_PER_BATCH) {
+							put(transformQueue, batch);
+							batch = new CitationBatch(citationIterator.getFileName(), sequenceNumber++);
+						}
+					}
+					batch.lastOfFile = true;
+					batch.fileError = citationIterator.hasError();
+					batch.fileSize = citationIterator.getFileSize();
+					batch.checksum = citationIterator.getChecksum();
+					batch.filterHits = citationIterator.getFilterHits();
+					batch.filterMisses = citationIterator.getFilterMisses();
+					put(transformQueue, batch);
+				}
+			} catch (Throwable t) {
+				CitationBatch batch = new CitationBatch(null, sequenceNumber++);
+				batch.failure = t;
+				put(transformQueue, batch);
+			}
+			for (int i = 0; i < transformThreads; i++)
+				put(transformQueue, END);
+		}
+	}
+	
+	/**
+	 * Converts citations into rows. Has its own parser and PmidToDate, so it must only be used by one thread.
+	 */
+	private class Transformer {
+		private MedlineCitationParser	parser		= new MedlineCitationParser(medlineCitationParser);
+		private PmidToDate				pmidToDate	= new PmidToDate();
+		
+		/**
+		 * Transforms the nodes from index start (inclusive) to end (exclusive), and adds the citations to the list.
+		 */
+		public void transform(List<Node> nodes, int start, int end, List<ParsedCitation> citations) {
+			for (Node node : nodes.subList(start, end))
+				if (node.getNodeName().equals(CitationIterator.MEDLINE_CITATION)) {
+					Long contentHash = null;
+					if (citationHashStore != null) {
+						contentHash = CitationHashStore.computeHash(node);
+						if (elementFilter != null)
+							XmlTools.filterElement((Element) node, elementFilter);
+					}
+					ParsedCitation citation = parser.parse(node);
+					citation.dateRow = pmidToDate.getDateRow(node);
+					if (contentHash != null) {
+						citation.contentHash = contentHash;
+						citation.rows.add(CitationHashStore.getHashRow(citation.pmid, citation.pmidVersion, contentHash));
+					}
+					citations.add(citation);
+				} else
+					citations.addAll(parser.parseDelete(node));
+		}
+	}
+	
+	/**
+	 * Transforms a range of the nodes of a batch in the ForkJoinPool. Ranges larger than SPLIT_SIZE are split in two halves that are transformed in
+	 * parallel, after which the citations of the second half are appended to those of the first, so they remain in file order.
+	 */
+	private class TransformTask extends RecursiveAction {
+		private static final long	serialVersionUID	= 1L;
+		private List<Node>			nodes;
+		private int					start;
+		private int					end;
+		public List<ParsedCitation>	citations;
+		
+		public TransformTask(List<Node> nodes, int start, int end) {
+			this.nodes = nodes;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected void compute() {
+			if (end - start <= Math.max(1, SPLIT_SIZE)) {
+				citations = new ArrayList<ParsedCitation>(end - start);
+				poolTransformers.get().transform(nodes, start, end, citations);
+			} else {
+				int middle = (start + end) >>> 1;
+				TransformTask first = new TransformTask(nodes, start, middle);
+				TransformTask second = new TransformTask(nodes, middle, end);
+				invokeAll(first, second);
+				citations = first.citations;
+				citations.addAll(second.citations);
+			}
+		}
+	}
+	
+	/**
+	 * Converts the citations in each batch into rows. Has its own Transformer, so no state is shared with other transform threads. When using the
+	 * ForkJoinPool, the batch is handed to the pool instead, and this thread waits for the result.
+	 */
+	private class TransformThread extends Thread {
+		private Transformer	transformer	= new Transformer();
+		
+		@Override
+		public void run() {
+			while (true) {
+				CitationBatch batch = take(transformQueue);
+				if (batch == END) {
+					put(writeQueue, END);
+					return;
+				}
+				if (batch.failure == null) {
+					long start = System.nanoTime();
+					try {
+						if (forkJoinPool == null)
+							transformer.transform(batch.nodes, 0, batch.nodes.size(), batch.citations);
+						else {
+							TransformTask task = new TransformTask(batch.nodes, 0, batch.nodes.size());
+							forkJoinPool.invoke(task);
+							batch.citations = task.citations;
+						}
+					} catch (Throwable t) {
+						batch.failure = t;
+					}
+					batch.nodes = null;
+					transformStatistics.addBusyTime(System.nanoTime() - start);
+					transformStatistics.addItems(batch.citations.size());
+				}
+				put(writeQueue, batch);
+			}
+		}
+	}
+}
@@ -18,9 +18,7 @@ package org.ohdsi.medlineXmlToDatabase;
 import org.ohdsi.databases.ConnectionWrapper;
 import org.ohdsi.databases.DbType;
 import org.ohdsi.utilities.files.IniFile;
-import org.w3c.dom.Document;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
  * This class analyzes the XML files and creates the appropriate database structure
@@ -35,12 +33,31 @@ public class MedlineAnalyserMain {
 	 */
 	public static int				MAX_FILES_TO_ANALYSE	= 1000;
 
+	/**
+	 * If true, the tables are created without primary keys. These are added, together with the indexes in the index file, once the data has been loaded.
+	 */
+	public static boolean			DEFER_INDEXES			= false;
+
+	/**
+	 * If true, the processed_file table used by the file ledger of the parse step is created as well.
+	 */
+	public static boolean			FILE_LEDGER				= false;
+
 	private MedlineCitationAnalyser	medlineCitationAnalyser;
+	private Projection				projection;
 
 	public static void main(String[] args) {
 		IniFile iniFile = new IniFile(args[0]);
 
+		XMLFileIterator.DECODE_THREADS = iniFile.getInt("DECODE_THREADS", XMLFileIterator.DECODE_THREADS);
+		XMLFileIterator.FILES_IN_FLIGHT = iniFile.getInt("FILES_IN_FLIGHT", XMLFileIterator.FILES_IN_FLIGHT);
+		if (iniFile.get("DEFER_INDEXES").length() != 0)
+			DEFER_INDEXES = Boolean.parseBoolean(iniFile.get("DEFER_INDEXES"));
+		if (iniFile.get("FILE_LEDGER").length() != 0)
+			FILE_LEDGER = Boolean.parseBoolean(iniFile.get("FILE_LEDGER"));
+
 		MedlineAnalyserMain main = new MedlineAnalyserMain();
+		main.projection = new Projection(iniFile.get("INCLUDE_TABLES"), iniFile.get("EXCLUDE_TABLES"), iniFile.get("EXCLUDE_FIELDS"));
 		main.analyseFolder(iniFile.get("XML_FOLDER"));
 		main.createDatabase(iniFile.get("SERVER"), iniFile.get("SCHEMA"), iniFile.get("DOMAIN"), iniFile.get("USER"), iniFile.get("PASSWORD"),
 				iniFile.get("DATA_SOURCE_TYPE"), iniFile.get("CREATE_SCHEMA"));
@@ -52,6 +69,7 @@ public class MedlineAnalyserMain {
 		medlineCitationAnalyser = new MedlineCitationAnalyser();
 
 		XMLFileIterator iterator = new XMLFileIterator(folderName, MAX_FILES_TO_ANALYSE);
+		iterator.setElementFilter(projection.getElementFilter());
 		while (iterator.hasNext())
 			analyse(iterator.next());
 
@@ -59,11 +77,11 @@ public class MedlineAnalyserMain {
 //		medlineCitationAnalyser.printStructure();
 	}
 
-	private void analyse(Document document) {
-		NodeList citationNodes = document.getElementsByTagName("MedlineCitation");
-		for (int i = 0; i < citationNodes.getLength(); i++) {
-			Node citation = citationNodes.item(i);
-			medlineCitationAnalyser.analyse(citation);
+	private void analyse(CitationIterator citationIterator) {
+		while (citationIterator.hasNext()) {
+			Node node = citationIterator.next();
+			if (node.getNodeName().equals(CitationIterator.MEDLINE_CITATION))
+				medlineCitationAnalyser.analyse(node);
 		}
 	}
 
@@ -73,8 +91,10 @@ public class MedlineAnalyserMain {
 			connectionWrapper.createDatabase(schema);
 		connectionWrapper.use(schema);
 		System.out.println("Creating tables");
-		medlineCitationAnalyser.createTables(connectionWrapper);
-		PmidToDate.createTable(connectionWrapper);
+		medlineCitationAnalyser.createTables(connectionWrapper, !DEFER_INDEXES, projection);
+		PmidToDate.createTable(connectionWrapper, !DEFER_INDEXES);
+		if (FILE_LEDGER)
+			FileLedger.createTable(connectionWrapper);
 		connectionWrapper.close();
 		System.out.println("Finished creating table structure");
 	}
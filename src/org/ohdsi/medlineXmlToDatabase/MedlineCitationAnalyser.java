@@ -15,6 +15,7 @@
  ******************************************************************************/
 package org.ohdsi.medlineXmlToDatabase;
 
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -25,6 +26,7 @@ import java.util.Map;
 import java.util.Set;
 
 import org.ohdsi.databases.ConnectionWrapper;
+import org.ohdsi.databases.ConnectionWrapper.FieldInfo;
 import org.ohdsi.utilities.StringUtilities;
 import org.ohdsi.utilities.XmlTools;
 import org.w3c.dom.NamedNodeMap;
@@ -131,12 +133,48 @@ public class MedlineCitationAnalyser {
 		}
 	}
 	
+	/**
+	 * @return The primary key of a table with the given fields: PMID, PMID_Version, and the order fields
+	 */
+	public static List<String> getPrimaryKey(List<String> fields) {
+		List<String> primaryKey = new ArrayList<String>();
+		primaryKey.add("PMID");
+		primaryKey.add("PMID_Version");
+		for (String field : fields)
+			if (field.toLowerCase().endsWith(ORDER_POSTFIX.toLowerCase()))
+				primaryKey.add(field);
+		return primaryKey;
+	}
+	
 	public void createTables(ConnectionWrapper connectionWrapper) {
+		createTables(connectionWrapper, true);
+	}
+	
+	/**
+	 * @param createPrimaryKeys
+	 *            If false, the tables are created without primary keys, so these can be added after the data has been loaded.
+	 */
+	public void createTables(ConnectionWrapper connectionWrapper, boolean createPrimaryKeys) {
+		createTables(connectionWrapper, createPrimaryKeys, null);
+	}
+	
+	/**
+	 * @param createPrimaryKeys
+	 *            If false, the tables are created without primary keys, so these can be added after the data has been loaded.
+	 * @param projection
+	 *            Only the tables and fields included by the projection are created. Can be null
+	 */
+	public void createTables(ConnectionWrapper connectionWrapper, boolean createPrimaryKeys, Projection projection) {
 		List<String> sortedTables = new ArrayList<String>(table2Fields.keySet());
 		Collections.sort(sortedTables);
 		for (String table : sortedTables) {
+			if (projection != null && !projection.includesTable(table))
+				continue;
 			
-			List<String> sortedFields = new ArrayList<String>(table2Fields.get(table));
+			List<String> sortedFields = new ArrayList<String>();
+			for (String field : table2Fields.get(table))
+				if (projection == null || projection.includesField(table, field))
+					sortedFields.add(field);
 			Collections.sort(sortedFields);
 			List<VariableType> types = new ArrayList<VariableType>(sortedFields.size());
 			for (String field : sortedFields)
@@ -144,15 +182,39 @@ public class MedlineCitationAnalyser {
 			int index = sortedFields.indexOf("");
 			if (index != -1)
 				sortedFields.set(index, "Value");
-			List<String> primaryKey = new ArrayList<String>();
-			primaryKey.add("PMID");
-			primaryKey.add("PMID_Version");
-			for (String field : sortedFields)
-				if (field.endsWith(ORDER_POSTFIX))
-					primaryKey.add(field);
+			List<String> primaryKey = getPrimaryKey(sortedFields);
 				
-			connectionWrapper.createTableUsingVariableTypes(table, sortedFields, types, primaryKey);
+			connectionWrapper.createTableUsingVariableTypes(table, sortedFields, types, primaryKey, createPrimaryKeys);
+		}
+	}
+	
+	/**
+	 * @return The fields of each table as createTables() would create them, with the abbreviated table and field names, so a MedlineCitationParser
+	 *         can be created without a database. Numeric fields are INTEGER or BIGINT, and text fields are VARCHAR, with the length of TEXT on
+	 *         PostgreSQL if they are longer than 255 characters
+	 */
+	public Map<String, List<FieldInfo>> getTableStructure() {
+		Map<String, List<FieldInfo>> tableStructure = new HashMap<String, List<FieldInfo>>();
+		for (String table : table2Fields.keySet()) {
+			List<String> sortedFields = new ArrayList<String>(table2Fields.get(table));
+			Collections.sort(sortedFields);
+			List<FieldInfo> fieldInfos = new ArrayList<FieldInfo>(sortedFields.size());
+			for (String field : sortedFields) {
+				VariableType variableType = field2VariableType.get(concatenate(table, field));
+				FieldInfo fieldInfo = new FieldInfo();
+				fieldInfo.name = Abbreviator.abbreviate(field.length() == 0 ? "Value" : field);
+				if (variableType.isNumeric) {
+					fieldInfo.type = variableType.maxLength < 10 ? Types.INTEGER : Types.BIGINT;
+					fieldInfo.length = variableType.maxLength < 10 ? 10 : 19;
+				} else {
+					fieldInfo.type = Types.VARCHAR;
+					fieldInfo.length = variableType.maxLength > 255 ? Integer.MAX_VALUE : 255;
+				}
+				fieldInfos.add(fieldInfo);
+			}
+			tableStructure.put(Abbreviator.abbreviate(table), fieldInfos);
 		}
+		return tableStructure;
 	}
 	
 	private boolean hasIllegalCharacter(String name) {
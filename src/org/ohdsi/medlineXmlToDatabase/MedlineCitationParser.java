@@ -16,23 +16,30 @@
 package org.ohdsi.medlineXmlToDatabase;
 
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.ohdsi.databases.ConnectionWrapper;
 import org.ohdsi.databases.ConnectionWrapper.FieldInfo;
 import org.ohdsi.utilities.XmlTools;
-import org.ohdsi.utilities.collections.OneToManyList;
+import org.ohdsi.utilities.XmlTools.ElementFilter;
 import org.ohdsi.utilities.collections.OneToManySet;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 /**
- * In this class, we do the actual work of reading the XML and inserting the data into the database
+ * In this class, we do the actual work of reading the XML and transforming it into the rows to insert into the database. Writing the rows is done by
+ * CitationWriter. An instance is not thread-safe, because the trie is built while parsing, but instances created with the copy constructor can be used in
+ * parallel. All state of the citation being parsed is passed along the calls, so the only state an instance keeps is the trie.<br>
+ * The element paths are compiled into a trie that knows for each element its table and field, so the table and field names only need to be built and
+ * abbreviated the first time a path is encountered.
  * 
  * @author MSCHUEMI
  *
@@ -41,207 +48,425 @@ public class MedlineCitationParser {
 	
 	private static String						MEDLINE_CITATION	= "MedlineCitation";
 	private OneToManySet<String, String>		tables2Fields		= new OneToManySet<String, String>();
-	private OneToManyList<String, FieldInfo>	tables2FieldInfos	= new OneToManyList<String, FieldInfo>();
-	private String								pmid;
-	private String								pmid_version;
-	private ConnectionWrapper					connectionWrapper;
+	private Map<String, Map<String, FieldInfo>>	tables2FieldInfos	= new HashMap<String, Map<String, FieldInfo>>();
+	private Set<String>							completeTables		= new HashSet<String>();
+	private List<String>						filterPaths			= new ArrayList<String>();
+	private Set<String>							unstoredPaths		= new HashSet<String>();
+	private Map<String, TableInfo>				tableInfos			= new HashMap<String, TableInfo>();
+	private PathNode							root;
+	private Projection							projection;
 	
 	public MedlineCitationParser(ConnectionWrapper connectionWrapper, String schema) {
-		this.connectionWrapper = connectionWrapper;
-		Set<String> tables = new HashSet<String>();
-		for (String table : connectionWrapper.getTableNames(schema)) {
-			table = Abbreviator.unAbbreviate(table);
-			if (table.toLowerCase().startsWith("medlinecitation"))
-				tables.add(table);
+		this(connectionWrapper, schema, null);
+	}
+	
+	/**
+	 * @param projection
+	 *            Tables and fields excluded by the projection are ignored, as if they were not in the database. Can be null
+	 */
+	public MedlineCitationParser(ConnectionWrapper connectionWrapper, String schema, Projection projection) {
+		this(connectionWrapper, schema, projection, null);
+	}
+	
+	/**
+	 * @param projection
+	 *            Tables and fields excluded by the projection are ignored, as if they were not in the database. Can be null
+	 * @param citationFilter
+	 *            The filter applied to the citations before they are parsed. The element filter keeps the elements it uses, also if they are not stored.
+	 *            Can be null
+	 */
+	public MedlineCitationParser(ConnectionWrapper connectionWrapper, String schema, Projection projection, CitationFilter citationFilter) {
+		this(getTableStructure(connectionWrapper, schema), projection, citationFilter);
+	}
+	
+	/**
+	 * Creates a parser without a database, for example for benchmarking.
+	 * 
+	 * @param tableStructure
+	 *            The fields of each medcit table, with the (abbreviated) table names as they are in the database
+	 * @param projection
+	 *            Tables and fields excluded by the projection are ignored, as if they were not in the database. Can be null
+	 * @param citationFilter
+	 *            The filter applied to the citations before they are parsed. Can be null
+	 */
+	public MedlineCitationParser(Map<String, List<FieldInfo>> tableStructure, Projection projection, CitationFilter citationFilter) {
+		this.projection = projection;
+		if (citationFilter != null)
+			filterPaths.addAll(citationFilter.getElementPaths());
+		// Elements that are only read for the publication date or the citation filter, and the elements containing them:
+		List<String> paths = new ArrayList<String>(PmidToDate.getElementPaths());
+		paths.addAll(filterPaths);
+		for (String path : paths) {
+			path = Abbreviator.abbreviate(path);
+			unstoredPaths.add(path);
+			for (int i = path.indexOf('_'); i != -1; i = path.indexOf('_', i + 1))
+				unstoredPaths.add(path.substring(0, i));
 		}
-		for (String table : tables)
-			for (FieldInfo fieldInfo : connectionWrapper.getFieldInfo(Abbreviator.abbreviate(table))) {
+		for (Map.Entry<String, List<FieldInfo>> entry : tableStructure.entrySet()) {
+			String table = Abbreviator.unAbbreviate(entry.getKey());
+			if (projection != null && !projection.includesTable(table))
+				continue;
+			Map<String, FieldInfo> name2FieldInfo = new LinkedHashMap<String, FieldInfo>();
+			boolean complete = true;
+			for (FieldInfo fieldInfo : entry.getValue()) {
+				if (projection != null && !projection.includesField(table, fieldInfo.name)) {
+					complete = false;
+					continue;
+				}
 				tables2Fields.put(table, fieldInfo.name);
-				tables2FieldInfos.put(table, fieldInfo);
+				name2FieldInfo.put(fieldInfo.name.toLowerCase(), fieldInfo);
 			}
+			tables2FieldInfos.put(table, name2FieldInfo);
+			if (complete)
+				completeTables.add(table);
+		}
 	}
 	
-	public void parseAndInjectIntoDB(Node citation) {
-		findPmidAndVersion(citation);
-		
-		connectionWrapper.setBatchMode(true);
-		deleteAllForPmidAndVersion();
-		Map<String, String> keys = new HashMap<String, String>();
-		keys.put("PMID", pmid);
-		keys.put("PMID_Version", pmid_version);
-		parseNode(citation, "", "MedlineCitation", new HashMap<String, String>(), true, keys);
-		try {
-			connectionWrapper.setBatchMode(false);
-		} catch (Exception e) {
-			System.err.println("Problem inserting in to DB for PMID " + pmid + ": " + e.getMessage());
-			e.printStackTrace();
-		}
+	/**
+	 * @return The fields of each medcit table in the schema, with the table names as they are in the database
+	 */
+	private static Map<String, List<FieldInfo>> getTableStructure(ConnectionWrapper connectionWrapper, String schema) {
+		Map<String, List<FieldInfo>> tableStructure = new HashMap<String, List<FieldInfo>>();
+		Set<String> tables = new HashSet<String>();
+		for (String table : connectionWrapper.getTableNames(schema))
+			if (Abbreviator.unAbbreviate(table).toLowerCase().startsWith("medlinecitation"))
+				tables.add(Abbreviator.abbreviate(Abbreviator.unAbbreviate(table)));
+		for (String table : tables)
+			tableStructure.put(table, connectionWrapper.getFieldInfo(table));
+		return tableStructure;
 	}
 	
 	/**
-	 * Record could be an update of a previous entry. Just in case, all previous data must be removed
-	 * 
-	 * @param sqls
+	 * Creates a parser that shares the (read-only) table structure of the given parser, so it can be used in a different thread without querying the
+	 * database again.
 	 */
-	private void deleteAllForPmidAndVersion() {
-		for (String table : tables2Fields.keySet()) {
-			String sql = "DELETE FROM " + Abbreviator.abbreviate(table) + " WHERE pmid = " + pmid + " AND pmid_version = " + pmid_version;
-			connectionWrapper.execute(sql);
-		}
-		
+	public MedlineCitationParser(MedlineCitationParser parser) {
+		this.tables2Fields = parser.tables2Fields;
+		this.tables2FieldInfos = parser.tables2FieldInfos;
+		this.completeTables = parser.completeTables;
+		this.filterPaths = parser.filterPaths;
+		this.unstoredPaths = parser.unstoredPaths;
+		this.projection = parser.projection;
 	}
 	
-	private void insertIntoDB(String table, Map<String, String> field2Value) {
-		removeFieldsNotInDb(table, field2Value);
-		truncateFieldsToDbSize(table, field2Value);
-		dropInvalidValues(table, field2Value);
-		connectionWrapper.insertIntoTable(table, field2Value);
+	/**
+	 * @return A filter that only reads the parts of a MedlineCitation element that end up in the tables and fields used by this parser, or are needed for
+	 *         the publication date and the citation filter. Null if no projection is used
+	 */
+	public ElementFilter getElementFilter() {
+		if (projection == null || projection.isEmpty())
+			return null;
+		Map<String, Set<String>> tablesToFields = new HashMap<String, Set<String>>();
+		for (Map.Entry<String, Set<String>> entry : tables2Fields.entrySet())
+			tablesToFields.put(entry.getKey(), entry.getValue());
+		return projection.getElementFilter(tablesToFields, filterPaths);
 	}
 	
-	private void dropInvalidValues(String table, Map<String, String> field2Value) {
-		for (FieldInfo fieldInfo : tables2FieldInfos.get(table.toLowerCase())) {
-			if (fieldInfo.type == Types.INTEGER || fieldInfo.type == Types.BIGINT) {
-				String name = null;
-				for (String field : field2Value.keySet())
-					if (Abbreviator.abbreviate(field).toLowerCase().equals(fieldInfo.name.toLowerCase())) {
-						name = field;
-						break;
-					}
-				if (name != null) {
-					String value = field2Value.get(name);
-					try {
-						Integer.parseInt(value);
-					} catch (NumberFormatException e) {
-						System.err.println("Error parsing integer value '" + value + "' for field " + fieldInfo.name + " in table " + table + ". Setting to null.");
-						field2Value.remove(name);
-					}
-				}
-			}
-		}
+	/**
+	 * @return The (unabbreviated) names of all medcit tables in the database
+	 */
+	public Set<String> getTables() {
+		return tables2Fields.keySet();
 	}
-
-	private void removeFieldsNotInDb(String table, Map<String, String> field2Value) {
-		Set<String> fieldsInDb = tables2Fields.get(table.toLowerCase());
-		Iterator<Map.Entry<String, String>> iterator = field2Value.entrySet().iterator();
-		while (iterator.hasNext()) {
-			String field = iterator.next().getKey();
-			if (!fieldsInDb.contains(Abbreviator.abbreviate(field.toLowerCase()))) {
-				System.err.println("Ignoring field " + field + " in table " + table
-						+ " because field is not in DB (meaning it wasn't encountered in the XML files before now)");
-				iterator.remove();
-			}
+	
+	public ParsedCitation parse(Node citation) {
+		String[] pmidAndVersion = findPmidAndVersion(citation);
+		if (pmidAndVersion == null)
+			throw new RuntimeException("No PMID found in citation");
+		ParsedCitation parsedCitation = new ParsedCitation(pmidAndVersion[0], pmidAndVersion[1]);
+		if (root == null)
+			root = new PathNode(getTableInfo(MEDLINE_CITATION, null), "", true);
+		parseTable(citation, root, pmidAndVersion, parsedCitation);
+		return parsedCitation;
+	}
+	
+	private TableInfo getTableInfo(String tableName, TableInfo parent) {
+		TableInfo tableInfo = tableInfos.get(tableName.toLowerCase());
+		if (tableInfo == null) {
+			tableInfo = new TableInfo(tableName, parent);
+			tableInfos.put(tableName.toLowerCase(), tableInfo);
 		}
+		return tableInfo;
 	}
 	
-	private void truncateFieldsToDbSize(String table, Map<String, String> field2Value) {
-		for (FieldInfo fieldInfo : tables2FieldInfos.get(table.toLowerCase())) {
-			if (fieldInfo.type == Types.VARCHAR || fieldInfo.type == Types.CLOB) {
-				String name = null;
-				for (String field : field2Value.keySet())
-					if (Abbreviator.abbreviate(field).toLowerCase().equals(fieldInfo.name.toLowerCase())) {
-						name = field;
-						break;
-					}
-				if (name != null) {
-					String value = field2Value.get(name);
-					if (value.length() > fieldInfo.length) {
-						System.err.println("Truncating field " + fieldInfo.name + " in table " + table + " from " + value.length() + " to " + fieldInfo.length
-								+ " characters for PMID " + pmid);
-						value = value.substring(0, fieldInfo.length);
-						field2Value.put(name, value);
-					}
+	/**
+	 * Converts the values into a row for the database: fields that are not in the database are ignored, text is truncated to the field size, and numeric
+	 * values are parsed (invalid numbers are set to null). If the parser uses all fields of the table, the values are also stored in table order in the
+	 * tableValues of the row.
+	 */
+	private void addRow(RowValues rowValues, ParsedCitation parsedCitation) {
+		TableInfo table = rowValues.table;
+		if (rowValues.ignoredFields != null)
+			for (String field : rowValues.ignoredFields.keySet())
+				System.err.println("Ignoring field " + field + " in table " + table.name
+						+ " because field is not in DB (meaning it wasn't encountered in the XML files before now)");
+		
+		// Add the fields in the order of the table, so rows with the same fields can share a prepared statement:
+		TableRow row = new TableRow(table.abbreviation);
+		if (table.complete)
+			row.tableValues = new Object[table.columns.length];
+		for (int i = 0; i < table.columns.length; i++) {
+			String value = rowValues.values[i];
+			if (value == null)
+				continue;
+			FieldInfo fieldInfo = table.columns[i];
+			Object typedValue;
+			if (fieldInfo.type == Types.INTEGER || fieldInfo.type == Types.BIGINT) {
+				try {
+					if (fieldInfo.type == Types.INTEGER)
+						typedValue = Integer.parseInt(value);
+					else
+						typedValue = Long.parseLong(value);
+				} catch (NumberFormatException e) {
+					System.err.println("Error parsing integer value '" + value + "' for field " + fieldInfo.name + " in table " + table.name + ". Setting to null.");
+					continue;
 				}
+			} else {
+				if ((fieldInfo.type == Types.VARCHAR || fieldInfo.type == Types.CLOB) && value.length() > fieldInfo.length) {
+					System.err.println("Truncating field " + fieldInfo.name + " in table " + table.name + " from " + value.length() + " to " + fieldInfo.length
+							+ " characters for PMID " + parsedCitation.pmid);
+					value = value.substring(0, fieldInfo.length);
+				}
+				typedValue = value;
 			}
+			row.add(fieldInfo.name, typedValue);
+			if (row.tableValues != null)
+				row.tableValues[i] = typedValue;
 		}
+		parsedCitation.rows.add(row);
 	}
 	
-	private boolean findPmidAndVersion(Node node) {
+	/**
+	 * @return The PMID and PMID_Version of the first PMID element below the node, or null if there is none
+	 */
+	private String[] findPmidAndVersion(Node node) {
 		NodeList children = node.getChildNodes();
 		for (int j = 0; j < children.getLength(); j++) {
 			Node child = children.item(j);
-			if (child.getNodeName().equals("PMID")) {
-				pmid = child.getFirstChild().getNodeValue();
-				pmid_version = child.getAttributes().getNamedItem("Version").getNodeValue();
-				return true;
-			}
-			if (findPmidAndVersion(child))
-				return true;
+			if (child.getNodeName().equals("PMID"))
+				return new String[] { child.getFirstChild().getNodeValue(), child.getAttributes().getNamedItem("Version").getNodeValue() };
+			String[] pmidAndVersion = findPmidAndVersion(child);
+			if (pmidAndVersion != null)
+				return pmidAndVersion;
 		}
-		return false;
+		return null;
 	}
 	
-	private void parseNode(Node node, String name, String tableName, HashMap<String, String> field2Value, boolean tableRoot, Map<String, String> keys) {
+	/**
+	 * @param keys
+	 *            The PMID, PMID_Version, and the order of this table and the tables containing it
+	 * @param parsedCitation
+	 *            The citation the rows are added to
+	 */
+	private void parseTable(Node node, PathNode pathNode, String[] keys, ParsedCitation parsedCitation) {
+		RowValues rowValues = new RowValues(pathNode.table);
+		parseNode(node, pathNode, rowValues, keys, parsedCitation);
+		// Bottom level completed: write values to database
+		for (int i = 0; i < keys.length; i++)
+			rowValues.set(pathNode.table.keyFields[i], keys[i]);
+		addRow(rowValues, parsedCitation);
+	}
+	
+	private void parseNode(Node node, PathNode pathNode, RowValues rowValues, String[] keys, ParsedCitation parsedCitation) {
 		// Add this value:
 		if (node.getNodeValue() != null && node.getNodeValue().trim().length() != 0)
-			field2Value.put(name.length() == 0 ? "Value" : name, node.getNodeValue());
+			rowValues.set(pathNode.valueField, node.getNodeValue());
 		
 		// Add attributes:
 		NamedNodeMap attributes = node.getAttributes();
 		if (attributes != null)
 			for (int i = 0; i < attributes.getLength(); i++) {
 				Node attribute = attributes.item(i);
-				String attributeName = concatenate(name, attribute.getNodeName());
-				field2Value.put(attributeName, attribute.getNodeValue());
+				rowValues.set(pathNode.getAttributeField(attribute.getNodeName()), attribute.getNodeValue());
 			}
 		
 		if (XmlTools.isTextNode(node)) {
-			field2Value.put(name.length() == 0 ? "Value" : name, node.getTextContent());
+			rowValues.set(pathNode.valueField, node.getTextContent());
 		} else {
 			// Add children
 			NodeList children = node.getChildNodes();
 			int subCount = 1;
 			for (int i = 0; i < children.getLength(); i++) {
 				Node child = children.item(i);
-				String childName = name;
-				if (!child.getNodeName().equals("#text")) {
-					childName = concatenate(childName, child.getNodeName());
-				}
-				String potentialNewTableName = concatenate(tableName, childName);
-				if (tables2Fields.keySet().contains(potentialNewTableName.toLowerCase())) {// Its a sub table
-					Map<String, String> newKeys = new HashMap<String, String>(keys);
-					newKeys.put(potentialNewTableName + "_Order", Integer.toString(subCount++));
-					parseNode(child, "", potentialNewTableName, new HashMap<String, String>(), true, newKeys);
+				if (child.getNodeType() == Node.TEXT_NODE) {
+					if (child.getNodeValue().trim().length() != 0)
+						rowValues.set(pathNode.valueField, child.getNodeValue());
 				} else {
-					parseNode(child, childName, tableName, field2Value, false, keys);
+					PathNode childPathNode = pathNode.getChild(child.getNodeName());
+					if (childPathNode.isTableRoot) {
+						String[] newKeys = Arrays.copyOf(keys, keys.length + 1);
+						newKeys[keys.length] = Integer.toString(subCount++);
+						parseTable(child, childPathNode, newKeys, parsedCitation);
+					} else
+						parseNode(child, childPathNode, rowValues, keys, parsedCitation);
 				}
 			}
 		}
-		if (tableRoot) { // Bottom level completed: write values to database
-			if (!tableName.equals(MEDLINE_CITATION)) {
-				if (field2Value.containsKey("PMID")) {
-					// A PMID field is encountered in a table that is not MEDLINE_CITATION. Need to rename to avoid collision with key
-					field2Value.put("Other_PMID", field2Value.get("PMID"));
-					field2Value.remove("PMID");
-				}
-				if (field2Value.containsKey("PMID_Version")) {
-					// A PMID_Version field is encountered in a table that is not MEDLINE_CITATION. Need to rename to avoid collision with key
-					field2Value.put("Other_PMID_Version", field2Value.get("PMID_Version"));
-					field2Value.remove("PMID_Version");
-				}
-			}
-			field2Value.putAll(keys);
-			insertIntoDB(tableName, field2Value);
-		}
 	}
 	
-	private String concatenate(String pre, String post) {
+	private static String concatenate(String pre, String post) {
 		if (pre.length() != 0)
 			return pre + "_" + post;
 		else
 			return post;
 	}
 	
-	public void delete(Node node) {
-		connectionWrapper.setBatchMode(true);
+	/**
+	 * @param node
+	 *            A DeleteCitation node
+	 * @return One delete entry for each PMID in the node
+	 */
+	public List<ParsedCitation> parseDelete(Node node) {
+		List<ParsedCitation> result = new ArrayList<ParsedCitation>();
 		NodeList children = node.getChildNodes();
 		for (int j = 0; j < children.getLength(); j++) {
 			Node child = children.item(j);
 			if (child.getNodeName().equals("PMID")) {
-				pmid = child.getFirstChild().getNodeValue();
-				pmid_version = child.getAttributes().getNamedItem("Version").getNodeValue();
-				deleteAllForPmidAndVersion();
+				ParsedCitation delete = new ParsedCitation(child.getFirstChild().getNodeValue(), child.getAttributes().getNamedItem("Version").getNodeValue());
+				delete.isDelete = true;
+				result.add(delete);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * A field of a table as found in the XML, resolved to its column in the database. The column is NOT_IN_DATABASE if the field is not in the database,
+	 * or UNSTORED if it is not in the database because of the projection, but is read for another purpose, such as the publication date or the citation
+	 * filter.
+	 */
+	private static class FieldSlot {
+		public static int	NOT_IN_DATABASE	= -1;
+		public static int	UNSTORED		= -2;
+		
+		public String	name;
+		public int		column;
+		
+		public FieldSlot(String name, int column) {
+			this.name = name;
+			this.column = column;
+		}
+	}
+	
+	/**
+	 * The columns of a table, and the columns of its keys: PMID, PMID_Version, and the order fields of the table and the tables containing it.
+	 */
+	private class TableInfo {
+		public String					name;
+		public String					abbreviation;
+		public boolean					complete;
+		public FieldInfo[]				columns;
+		public FieldSlot[]				keyFields;
+		private List<String>			orderFields;
+		private Map<String, Integer>	nameToColumn	= new HashMap<String, Integer>();
+		private Map<String, FieldSlot>	fields			= new HashMap<String, FieldSlot>();
+		
+		public TableInfo(String name, TableInfo parent) {
+			this.name = name;
+			abbreviation = Abbreviator.abbreviate(name);
+			Map<String, FieldInfo> name2FieldInfo = tables2FieldInfos.get(name.toLowerCase());
+			columns = name2FieldInfo.values().toArray(new FieldInfo[name2FieldInfo.size()]);
+			complete = completeTables.contains(name.toLowerCase());
+			for (int i = 0; i < columns.length; i++)
+				nameToColumn.put(columns[i].name.toLowerCase(), i);
+			orderFields = new ArrayList<String>();
+			if (parent != null) {
+				orderFields.addAll(parent.orderFields);
+				orderFields.add(name + "_Order");
+			}
+			keyFields = new FieldSlot[orderFields.size() + 2];
+			keyFields[0] = createField("PMID");
+			keyFields[1] = createField("PMID_Version");
+			for (int i = 0; i < orderFields.size(); i++)
+				keyFields[i + 2] = createField(orderFields.get(i));
+		}
+		
+		public FieldSlot getField(String fieldName) {
+			FieldSlot field = fields.get(fieldName);
+			if (field == null) {
+				String name = fieldName;
+				// A PMID or PMID_Version field in a table that is not MEDLINE_CITATION. Need to rename to avoid collision with key:
+				if (!this.name.equals(MEDLINE_CITATION) && (name.equals("PMID") || name.equals("PMID_Version")))
+					name = "Other_" + name;
+				field = createField(name);
+				fields.put(fieldName, field);
+			}
+			return field;
+		}
+		
+		private FieldSlot createField(String name) {
+			Integer column = nameToColumn.get(Abbreviator.abbreviate(name));
+			if (column == null)
+				column = projection != null && unstoredPaths.contains(Abbreviator.abbreviate(concatenate(this.name, name))) ? FieldSlot.UNSTORED
+						: FieldSlot.NOT_IN_DATABASE;
+			return new FieldSlot(name, column);
+		}
+	}
+	
+	/**
+	 * A node in the trie of element paths. Each node knows which table its element belongs to, and which field its value and attributes go to. Nodes are
+	 * created the first time an element is encountered, so afterwards an element only takes a single lookup.
+	 */
+	private class PathNode {
+		public TableInfo				table;
+		public boolean					isTableRoot;
+		public FieldSlot				valueField;
+		private String					name;
+		private Map<String, FieldSlot>	attributeFields	= new HashMap<String, FieldSlot>();
+		private Map<String, PathNode>	children		= new HashMap<String, PathNode>();
+		
+		public PathNode(TableInfo table, String name, boolean isTableRoot) {
+			this.table = table;
+			this.name = name;
+			this.isTableRoot = isTableRoot;
+			valueField = table.getField(name.length() == 0 ? "Value" : name);
+		}
+		
+		public FieldSlot getAttributeField(String attributeName) {
+			FieldSlot field = attributeFields.get(attributeName);
+			if (field == null) {
+				field = table.getField(concatenate(name, attributeName));
+				attributeFields.put(attributeName, field);
+			}
+			return field;
+		}
+		
+		public PathNode getChild(String elementName) {
+			PathNode child = children.get(elementName);
+			if (child == null) {
+				String childName = concatenate(name, elementName);
+				String potentialNewTableName = concatenate(table.name, childName);
+				if (tables2Fields.keySet().contains(potentialNewTableName.toLowerCase())) // Its a sub table
+					child = new PathNode(getTableInfo(potentialNewTableName, table), "", true);
+				else
+					child = new PathNode(table, childName, false);
+				children.put(elementName, child);
+			}
+			return child;
+		}
+	}
+	
+	/**
+	 * The values of a single row while its element is parsed.
+	 */
+	private static class RowValues {
+		public TableInfo			table;
+		public String[]				values;
+		public Map<String, String>	ignoredFields;
+		
+		public RowValues(TableInfo table) {
+			this.table = table;
+			values = new String[table.columns.length];
+		}
+		
+		public void set(FieldSlot field, String value) {
+			if (field.column >= 0)
+				values[field.column] = value;
+			else if (field.column == FieldSlot.NOT_IN_DATABASE) {
+				if (ignoredFields == null)
+					ignoredFields = new HashMap<String, String>();
+				ignoredFields.put(field.name, value);
 			}
 		}
-		connectionWrapper.setBatchMode(false);
 	}
 }
@@ -15,12 +15,16 @@
  ******************************************************************************/
 package org.ohdsi.medlineXmlToDatabase;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import org.ohdsi.databases.ConnectionWrapper;
 import org.ohdsi.databases.DbType;
+import org.ohdsi.utilities.XmlTools.ElementFilter;
+import org.ohdsi.utilities.concurrency.DatabaseThreads;
 import org.ohdsi.utilities.files.IniFile;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
  * Main parser class. Here's where we iterate over all xml.gz files
@@ -30,51 +34,235 @@ import org.w3c.dom.NodeList;
  */
 public class MedlineParserMain {
 
-	private MedlineCitationParser	medlineCitationParser;
-	private PmidToDate				pmidToDate;
+	/**
+	 * Number of threads writing to the database, each with its own connection.
+	 */
+	public static int		WRITE_THREADS			= 1;
+
+	/**
+	 * Groups of tables that are written by their own thread and connection, separated by semicolons, with the tables in a group separated by commas.
+	 * All other tables form one more group. Each of the WRITE_THREADS writers has a thread and connection per group. The groups commit separately, so
+	 * table groups cannot be used when committing per file or with the FILE_LEDGER.
+	 */
+	public static String	TABLE_GROUPS			= "";
+
+	/**
+	 * How citations are written: INSERT (prepared statements, works on all platforms), COPY (PostgreSQL only) or BULK_COPY (SQL Server only). COPY and
+	 * BULK_COPY are fastest for loading the baseline. DIFF works like INSERT, but only writes the differences for citations that are already in the
+	 * database, which is best for update files. UPSERT writes every row with a single INSERT ... ON CONFLICT (PostgreSQL), MERGE (SQL Server) or INSERT
+	 * ... ON DUPLICATE KEY UPDATE (MySQL) statement, and needs the primary keys, so cannot be used with DEFER_INDEXES.
+	 */
+	public static String	WRITE_MODE				= "INSERT";
+
+	/**
+	 * Keep track of the PMIDs in the database, so deletes are only issued for citations that are actually there. Reading the PMIDs takes a full scan of
+	 * the medcit table at startup, so this only pays off when loading many files, in particular the baseline.
+	 */
+	public static boolean	TRACK_PMIDS				= false;
+
+	/**
+	 * If true, the primary keys and the indexes in INDEX_FILE are built after all data has been loaded. Use together with DEFER_INDEXES in the analyse
+	 * step.
+	 */
+	public static boolean	DEFER_INDEXES			= false;
+
+	/**
+	 * Number of connections used to build the primary keys and indexes in parallel.
+	 */
+	public static int		INDEX_THREADS			= 4;
+
+	public static String	INDEX_FILE				= "Indices.sql";
+
+	/**
+	 * Record completely loaded files in the processed_file table, and skip them when parsing again, so an interrupted run can simply be restarted. The
+	 * table is created if it does not exist yet.
+	 */
+	public static boolean	FILE_LEDGER				= false;
+
+	/**
+	 * Scan all files before loading, so only the final version of each citation is written. Saves time when loading many update files at once.
+	 */
+	public static boolean	CONSOLIDATE_VERSIONS	= false;
+
+	/**
+	 * Store a hash of each citation, and skip citations that are delivered again without changes. The hash covers the complete citation, so the XML is
+	 * then read completely, also when a projection is used.
+	 */
+	public static boolean	SKIP_UNCHANGED			= false;
+
+	/**
+	 * Only load the citations that pass this expression (see CitationFilter). If empty, all citations are loaded.
+	 */
+	public static String	CITATION_FILTER			= "";
 
 	public static void main(String[] args) {
 		IniFile iniFile = new IniFile(args[0]);
+		XMLFileIterator.DECODE_THREADS = iniFile.getInt("DECODE_THREADS", XMLFileIterator.DECODE_THREADS);
+		XMLFileIterator.FILES_IN_FLIGHT = iniFile.getInt("FILES_IN_FLIGHT", XMLFileIterator.FILES_IN_FLIGHT);
+		IngestPipeline.TRANSFORM_THREADS = iniFile.getInt("TRANSFORM_THREADS", IngestPipeline.TRANSFORM_THREADS);
+		IngestPipeline.QUEUE_SIZE = iniFile.getInt("PIPELINE_QUEUE_SIZE", IngestPipeline.QUEUE_SIZE);
+		IngestPipeline.FORK_JOIN_THREADS = iniFile.getInt("FORK_JOIN_THREADS", IngestPipeline.FORK_JOIN_THREADS);
+		IngestPipeline.SPLIT_SIZE = iniFile.getInt("FORK_JOIN_SPLIT_SIZE", IngestPipeline.SPLIT_SIZE);
+		WRITE_THREADS = iniFile.getInt("WRITE_THREADS", WRITE_THREADS);
+		if (iniFile.get("TABLE_GROUPS").length() != 0)
+			TABLE_GROUPS = iniFile.get("TABLE_GROUPS");
+		if (iniFile.get("VIRTUAL_THREADS").length() != 0)
+			DatabaseThreads.VIRTUAL_THREADS = Boolean.parseBoolean(iniFile.get("VIRTUAL_THREADS"));
+		DatabaseThreads.MAX_DATABASE_CALLS = iniFile.getInt("MAX_DATABASE_CALLS", DatabaseThreads.MAX_DATABASE_CALLS);
+		if (DatabaseThreads.VIRTUAL_THREADS && !DatabaseThreads.isVirtualThreadsAvailable())
+			System.out.println("Virtual threads require Java 21 or higher, using platform threads instead");
+		if (iniFile.get("PARTITION_BY_PMID").length() != 0)
+			PmidOrderedScheduler.PARTITION_BY_PMID = Boolean.parseBoolean(iniFile.get("PARTITION_BY_PMID"));
+		if (iniFile.get("WRITE_MODE").length() != 0)
+			WRITE_MODE = iniFile.get("WRITE_MODE").toUpperCase();
+		if (iniFile.get("TRACK_PMIDS").length() != 0)
+			TRACK_PMIDS = Boolean.parseBoolean(iniFile.get("TRACK_PMIDS"));
+		if (iniFile.get("CITATIONS_PER_COMMIT").equalsIgnoreCase("FILE"))
+			CitationWriter.COMMIT_PER_FILE = true;
+		else
+			CitationWriter.CITATIONS_PER_COMMIT = iniFile.getInt("CITATIONS_PER_COMMIT", CitationWriter.CITATIONS_PER_COMMIT);
+		CitationWriter.CITATIONS_PER_BATCH = iniFile.getInt("CITATIONS_PER_BATCH", CitationWriter.CITATIONS_PER_BATCH);
+		BulkCopyCitationWriter.BATCH_SIZE = iniFile.getInt("BULK_COPY_BATCH_SIZE", BulkCopyCitationWriter.BATCH_SIZE);
+		if (iniFile.get("BULK_COPY_TABLE_LOCK").length() != 0)
+			BulkCopyCitationWriter.TABLE_LOCK = Boolean.parseBoolean(iniFile.get("BULK_COPY_TABLE_LOCK"));
+		if (iniFile.get("DEFER_INDEXES").length() != 0)
+			DEFER_INDEXES = Boolean.parseBoolean(iniFile.get("DEFER_INDEXES"));
+		INDEX_THREADS = iniFile.getInt("INDEX_THREADS", INDEX_THREADS);
+		if (iniFile.get("INDEX_FILE").length() != 0)
+			INDEX_FILE = iniFile.get("INDEX_FILE");
+		if (iniFile.get("FILE_LEDGER").length() != 0)
+			FILE_LEDGER = Boolean.parseBoolean(iniFile.get("FILE_LEDGER"));
+		if (iniFile.get("CONSOLIDATE_VERSIONS").length() != 0)
+			CONSOLIDATE_VERSIONS = Boolean.parseBoolean(iniFile.get("CONSOLIDATE_VERSIONS"));
+		if (iniFile.get("SKIP_UNCHANGED").length() != 0)
+			SKIP_UNCHANGED = Boolean.parseBoolean(iniFile.get("SKIP_UNCHANGED"));
+		if (iniFile.get("CITATION_FILTER").length() != 0)
+			CITATION_FILTER = iniFile.get("CITATION_FILTER");
+		if (TABLE_GROUPS.trim().length() != 0 && (CitationWriter.COMMIT_PER_FILE || FILE_LEDGER))
+			throw new RuntimeException("TABLE_GROUPS cannot be combined with CITATIONS_PER_COMMIT = FILE or FILE_LEDGER = true, since the table groups "
+					+ "commit separately, so a file is never committed as a whole");
+
+		Projection projection = new Projection(iniFile.get("INCLUDE_TABLES"), iniFile.get("EXCLUDE_TABLES"), iniFile.get("EXCLUDE_FIELDS"));
 
 		MedlineParserMain main = new MedlineParserMain();
 		main.parseFolder(iniFile.get("XML_FOLDER"), iniFile.get("SERVER"), iniFile.get("SCHEMA"), iniFile.get("DOMAIN"), iniFile.get("USER"),
-				iniFile.get("PASSWORD"), iniFile.get("DATA_SOURCE_TYPE"));
+				iniFile.get("PASSWORD"), iniFile.get("DATA_SOURCE_TYPE"), projection);
 	}
 
-	private void parseFolder(String folder, String server, String schema, String domain, String user, String password, String dateSourceType) {
+	private void parseFolder(String folder, String server, String schema, String domain, String user, String password, String dateSourceType,
+			Projection projection) {
 		ConnectionWrapper connectionWrapper = new ConnectionWrapper(server, domain, user, password, new DbType(dateSourceType));
 		connectionWrapper.use(schema);
 
-		medlineCitationParser = new MedlineCitationParser(connectionWrapper, schema);
-		pmidToDate = new PmidToDate(connectionWrapper);
+		CitationFilter citationFilter = CITATION_FILTER.length() == 0 ? null : new CitationFilter(CITATION_FILTER);
+		MedlineCitationParser medlineCitationParser = new MedlineCitationParser(connectionWrapper, schema, projection, citationFilter);
+		// The stored hashes cover the complete citation, so then the pipeline applies the element filter after computing the hash:
+		ElementFilter elementFilter = SKIP_UNCHANGED ? null : medlineCitationParser.getElementFilter();
+		PmidPresenceBitmap pmidPresenceBitmap = TRACK_PMIDS ? PmidPresenceBitmap.load(connectionWrapper) : null;
+		CitationHashStore citationHashStore = null;
+		if (SKIP_UNCHANGED) {
+			ConnectionWrapper hashConnectionWrapper = new ConnectionWrapper(server, domain, user, password, new DbType(dateSourceType));
+			hashConnectionWrapper.use(schema);
+			citationHashStore = CitationHashStore.load(hashConnectionWrapper, pmidPresenceBitmap);
+		}
+		List<Set<String>> tableGroups = getTableGroups(medlineCitationParser.getTables());
+		// Each group keeps track of the citations in its own tables. The bitmap of the medcit group is also used for the stored hashes:
+		List<PmidPresenceBitmap> groupBitmaps = new ArrayList<PmidPresenceBitmap>();
+		for (Set<String> tableGroup : tableGroups)
+			if (pmidPresenceBitmap == null || tableGroup.contains("medlinecitation"))
+				groupBitmaps.add(pmidPresenceBitmap);
+			else
+				groupBitmaps.add(pmidPresenceBitmap.copy());
+		List<CitationWriter> citationWriters = new ArrayList<CitationWriter>();
+		for (int i = 0; i < WRITE_THREADS; i++) {
+			List<CitationWriter> groupWriters = new ArrayList<CitationWriter>();
+			for (int j = 0; j < tableGroups.size(); j++) {
+				ConnectionWrapper writerConnectionWrapper = connectionWrapper;
+				if (i != 0 || j != 0) {
+					writerConnectionWrapper = new ConnectionWrapper(server, domain, user, password, new DbType(dateSourceType));
+					writerConnectionWrapper.use(schema);
+				}
+				groupWriters.add(createCitationWriter(writerConnectionWrapper, tableGroups.get(j), groupBitmaps.get(j)));
+			}
+			if (groupWriters.size() == 1)
+				citationWriters.add(groupWriters.get(0));
+			else
+				citationWriters.add(new TableGroupCitationWriter(groupWriters));
+		}
+		FileLedger fileLedger = null;
+		if (FILE_LEDGER) {
+			ConnectionWrapper ledgerConnectionWrapper = new ConnectionWrapper(server, domain, user, password, new DbType(dateSourceType));
+			ledgerConnectionWrapper.use(schema);
+			fileLedger = FileLedger.load(ledgerConnectionWrapper);
+		}
+		VersionConsolidator versionConsolidator = CONSOLIDATE_VERSIONS ? VersionConsolidator.scan(createXMLFileIterator(folder, fileLedger, elementFilter,
+				citationFilter)) : null;
+		IngestPipeline pipeline = new IngestPipeline(medlineCitationParser, citationWriters, fileLedger, versionConsolidator, citationHashStore);
+		pipeline.run(createXMLFileIterator(folder, fileLedger, elementFilter, citationFilter));
+		if (WRITE_MODE.equals("DIFF"))
+			System.out.println(DiffCitationWriter.getStatistics());
 
-		XMLFileIterator iterator = new XMLFileIterator(folder);
-		while (iterator.hasNext()) {
-			Document document = iterator.next();
-			analyse(document);
-			pmidToDate.insertDates(document);
+		if (DEFER_INDEXES) {
+			IndexBuilder indexBuilder = new IndexBuilder(connectionWrapper, medlineCitationParser.getTables(), INDEX_FILE);
+			List<ConnectionWrapper> indexConnectionWrappers = new ArrayList<ConnectionWrapper>();
+			for (int i = 0; i < INDEX_THREADS; i++) {
+				ConnectionWrapper indexConnectionWrapper = new ConnectionWrapper(server, domain, user, password, new DbType(dateSourceType));
+				indexConnectionWrapper.use(schema);
+				indexConnectionWrappers.add(indexConnectionWrapper);
+			}
+			indexBuilder.build(indexConnectionWrappers);
+			for (ConnectionWrapper indexConnectionWrapper : indexConnectionWrappers)
+				indexConnectionWrapper.close();
 		}
 	}
 
-	private void analyse(Document document) {
-		NodeList citationNodes = document.getElementsByTagName("MedlineCitation");
-		long start = System.currentTimeMillis();
-		int total = citationNodes.getLength();
-		for (int i = 0; i < total; i++) {
-			Node citation = citationNodes.item(i);
-			medlineCitationParser.parseAndInjectIntoDB(citation);
-			if (i % 10000 == 0 && i != 0)
-				System.out.println(i + " of " + total + " (" + (System.currentTimeMillis() - start) + "ms since start)");
-		}
-		System.out.println(total + " of " + total + " (" + (System.currentTimeMillis() - start) + "ms since start)");
-
-		NodeList deleteNodes = document.getElementsByTagName("DeleteCitation");
-		if (deleteNodes.getLength() != 0) {
-			System.out.println("Deleting obsolete records");
-			for (int i = 0; i < deleteNodes.getLength(); i++) {
-				Node delete = deleteNodes.item(i);
-				medlineCitationParser.delete(delete);
+	/**
+	 * @return The tables in each of the TABLE_GROUPS, preceded by the group of all other tables (if any)
+	 */
+	private List<Set<String>> getTableGroups(Set<String> tables) {
+		Set<String> otherTables = new HashSet<String>(tables);
+		List<Set<String>> tableGroups = new ArrayList<Set<String>>();
+		for (String group : TABLE_GROUPS.split(";")) {
+			if (group.trim().length() == 0)
+				continue;
+			Set<String> tableGroup = new HashSet<String>();
+			for (String name : group.trim().split("\\s*,\\s*")) {
+				String found = null;
+				for (String table : otherTables)
+					if (Abbreviator.abbreviate(table).equals(Abbreviator.abbreviate(name)))
+						found = table;
+				if (found == null)
+					throw new RuntimeException("Table " + name + " in TABLE_GROUPS does not exist, or is in more than one group");
+				otherTables.remove(found);
+				tableGroup.add(found);
 			}
+			tableGroups.add(tableGroup);
 		}
+		if (otherTables.size() != 0)
+			tableGroups.add(0, otherTables);
+		return tableGroups;
+	}
+
+	private XMLFileIterator createXMLFileIterator(String folder, FileLedger fileLedger, ElementFilter elementFilter, CitationFilter citationFilter) {
+		XMLFileIterator iterator = new XMLFileIterator(folder);
+		iterator.setFileLedger(fileLedger);
+		iterator.setElementFilter(elementFilter);
+		iterator.setCitationFilter(citationFilter);
+		return iterator;
+	}
+
+	private CitationWriter createCitationWriter(ConnectionWrapper connectionWrapper, Set<String> tables, PmidPresenceBitmap pmidPresenceBitmap) {
+		if (WRITE_MODE.equals("INSERT"))
+			return new CitationWriter(connectionWrapper, tables, pmidPresenceBitmap);
+		else if (WRITE_MODE.equals("COPY"))
+			return new CopyCitationWriter(connectionWrapper, tables, pmidPresenceBitmap);
+		else if (WRITE_MODE.equals("BULK_COPY"))
+			return new BulkCopyCitationWriter(connectionWrapper, tables, pmidPresenceBitmap);
+		else if (WRITE_MODE.equals("DIFF"))
+			return new DiffCitationWriter(connectionWrapper, tables, pmidPresenceBitmap);
+		else if (WRITE_MODE.equals("UPSERT"))
+			return new UpsertCitationWriter(connectionWrapper, tables, pmidPresenceBitmap);
+		else
+			throw new RuntimeException("Unknown write mode: " + WRITE_MODE);
 	}
 }
@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of transforming a single MedlineCitation (or a single PMID in a DeleteCitation) into database rows. Instances are created by
+ * MedlineCitationParser and written to the database by CitationWriter.
+ * 
+ * @author MSCHUEMI
+ *
+ */
+public class ParsedCitation {
+	public String			pmid;
+	public String			pmidVersion;
+	
+	/**
+	 * If true, the citation only needs to be removed from the database, and there are no rows to insert.
+	 */
+	public boolean			isDelete	= false;
+	
+	/**
+	 * The rows to insert into the medcit tables.
+	 */
+	public List<TableRow>	rows		= new ArrayList<TableRow>();
+	
+	/**
+	 * The row to insert into pmid_to_date, or null if no valid date was found.
+	 */
+	public TableRow			dateRow;
+	
+	/**
+	 * Hash of the content of the citation, or null if it has not been computed.
+	 */
+	public Long				contentHash;
+	
+	public ParsedCitation(String pmid, String pmidVersion) {
+		this.pmid = pmid;
+		this.pmidVersion = pmidVersion;
+	}
+}
@@ -0,0 +1,415 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.ohdsi.utilities.concurrency.DatabaseThreads;
+import org.ohdsi.utilities.concurrency.StageStatistics;
+
+/**
+ * Writes citations in parallel using several CitationWriters, while guaranteeing that all operations on the same PMID (insert, re-insert, delete) are
+ * executed in the order in which they were submitted, which is file order. Citations with different PMIDs can be written at the same time, so many
+ * update files can be loaded at once.<br>
+ * Each PMID has a queue of waiting operations. Only the head of that queue is ever handed to a writer thread; when it is committed, the next operation
+ * for the same PMID becomes available. Files are reported as completed in filename order, once all their operations have been committed.<br>
+ * A writer thread asks its CitationWriter to commit (flush) after getCitationsPerCommit() citations, or when no new citation becomes available within
+ * IDLE_MILLIS, so operations waiting for an uncommitted operation never wait long.<br>
+ * When committing per file, each file is assigned to one writer thread (round robin), and each thread writes its files one at a time, committing when all
+ * citations of a file have been written. Operations for later files are held back until then. An operation on a PMID that only has operations in the
+ * same file waiting is handed to the file's thread right away, since that thread writes the file in order anyway, and committing in between is not
+ * possible. Operations on a PMID that still has operations of an earlier file waiting wait for that file to be committed, after which all of them are
+ * handed to the thread at once. A file therefore only waits for earlier files, so this cannot deadlock.<br>
+ * When partitioning by PMID (and not committing per file), each PMID is always written by the same writer thread, chosen by the hash of the PMID, so
+ * each connection writes its own part of the PMIDs and connections never touch the same citation. A writer writes the operations on its PMIDs in the
+ * order they were submitted, so a new operation does not have to wait until the previous operation on the same PMID has been committed.<br>
+ * Completed files are recorded in the FileLedger, if provided. When committing per file the record is part of the file's transaction, otherwise it is
+ * written once all citations of the file have been committed. Files that could not be read completely are not recorded.<br>
+ * The writer threads are created by DatabaseThreads, so they are virtual threads when VIRTUAL_THREADS is set, and each write and commit counts as one
+ * call towards MAX_DATABASE_CALLS.
+ * 
+ * @author MSCHUEMI
+ *
+ */
+public class PmidOrderedScheduler {
+	
+	/**
+	 * Maximum number of submitted citations that have not yet been written. When reached, submit() blocks.
+	 */
+	public static int						MAX_PENDING			= 10000;
+	
+	/**
+	 * Time a writer thread with uncommitted citations waits for a new citation before committing.
+	 */
+	public static int						IDLE_MILLIS			= 100;
+	
+	/**
+	 * Assign each PMID to a fixed writer thread, by the hash of the PMID. Ignored when committing per file.
+	 */
+	public static boolean					PARTITION_BY_PMID	= false;
+	
+	private Map<String, LinkedList<Task>>	pmidToQueue			= new HashMap<String, LinkedList<Task>>();
+	private BlockingQueue<Task>				ready				= new LinkedBlockingQueue<Task>();
+	private LinkedList<FileProgress>		files				= new LinkedList<FileProgress>();
+	private int								fileCount			= 0;
+	private Semaphore						capacity			= new Semaphore(MAX_PENDING);
+	private List<WriterThread>				threads				= new ArrayList<WriterThread>();
+	private boolean							commitPerFile;
+	private boolean							partitionByPmid;
+	private FileCompletionListener			listener;
+	private FileLedger						fileLedger;
+	private StageStatistics					statistics;
+	private volatile Throwable				failure;
+	
+	/**
+	 * Is notified whenever a file has been written completely. Notifications are in filename order, and never concurrent.
+	 */
+	public interface FileCompletionListener {
+		public void fileCompleted(String fileName, int citations, boolean fileError);
+	}
+	
+	/**
+	 * @param writers
+	 *            One writer per thread. Each must have its own connection.
+	 * @param listener
+	 *            Is notified when files are completed
+	 * @param commitPerFile
+	 *            If true, each file is written by a single writer in a single transaction
+	 * @param fileLedger
+	 *            The ledger in which completed files are recorded. Can be null
+	 */
+	public PmidOrderedScheduler(List<CitationWriter> writers, FileCompletionListener listener, boolean commitPerFile, FileLedger fileLedger) {
+		this.listener = listener;
+		this.commitPerFile = commitPerFile;
+		this.fileLedger = fileLedger;
+		partitionByPmid = PARTITION_BY_PMID && !commitPerFile;
+		statistics = new StageStatistics("Write", writers.size());
+		for (int i = 0; i < writers.size(); i++) {
+			WriterThread thread = new WriterThread(writers.get(i), i, commitPerFile || partitionByPmid ? new LinkedBlockingQueue<Task>() : ready);
+			thread.thread = DatabaseThreads.newThread(thread, "Writer " + i);
+			threads.add(thread);
+		}
+		for (WriterThread thread : threads)
+			thread.thread.start();
+	}
+	
+	public StageStatistics getStatistics() {
+		return statistics;
+	}
+	
+	/**
+	 * @return The number of citations that have been submitted but not yet written
+	 */
+	public int getPending() {
+		return MAX_PENDING - capacity.availablePermits();
+	}
+	
+	/**
+	 * Submits a citation for writing. Must be called from a single thread, in file order.
+	 */
+	public void submit(String fileName, ParsedCitation citation) {
+		try {
+			while (!capacity.tryAcquire(1, TimeUnit.SECONDS))
+				checkFailure();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		checkFailure();
+		synchronized (this) {
+			FileProgress file = getFile(fileName);
+			file.outstanding++;
+			file.citations++;
+			Task task = new Task(citation, file);
+			LinkedList<Task> queue = pmidToQueue.get(citation.pmid);
+			if (queue == null) {
+				queue = new LinkedList<Task>();
+				pmidToQueue.put(citation.pmid, queue);
+				schedule(task);
+			} else if (partitionByPmid || (commitPerFile && queue.getFirst().file == file))
+				// Files are submitted in order, so if the first task is of this file, all tasks are, and all have been scheduled:
+				schedule(task);
+			queue.add(task);
+		}
+	}
+	
+	/**
+	 * Signals that all citations of the file have been submitted.
+	 */
+	public synchronized void fileSubmitted(String fileName, boolean fileError, long fileSize, String checksum) {
+		FileProgress file = getFile(fileName);
+		file.allSubmitted = true;
+		file.fileError = fileError;
+		file.fileSize = fileSize;
+		file.checksum = checksum;
+		if (commitPerFile)
+			schedule(new Task(null, file));
+		reportCompletedFiles();
+	}
+	
+	/**
+	 * Waits until all submitted citations have been written, and stops the writer threads.
+	 */
+	public void finish() {
+		try {
+			while (!capacity.tryAcquire(MAX_PENDING, 1, TimeUnit.SECONDS))
+				checkFailure();
+			for (WriterThread thread : threads)
+				thread.queue.add(new Task(null, null));
+			for (WriterThread thread : threads)
+				thread.thread.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		checkFailure();
+	}
+	
+	/**
+	 * @return True if an operation on the PMID has been submitted but not yet committed
+	 */
+	public synchronized boolean isPending(String pmid) {
+		return pmidToQueue.containsKey(pmid);
+	}
+	
+	private void checkFailure() {
+		if (failure != null)
+			throw new RuntimeException("Error writing to the database", failure);
+	}
+	
+	private FileProgress getFile(String fileName) {
+		FileProgress file = files.isEmpty() ? null : files.getLast();
+		if (file == null || !file.fileName.equals(fileName) || file.allSubmitted) {
+			file = new FileProgress(fileName, fileCount++);
+			files.add(file);
+		}
+		return file;
+	}
+	
+	/**
+	 * Hands the task to a writer thread: the thread the task's file is assigned to when committing per file, the thread the PMID is assigned to when
+	 * partitioning by PMID, or any thread otherwise.
+	 */
+	private void schedule(Task task) {
+		task.scheduled = true;
+		if (commitPerFile)
+			threads.get(task.file.index % threads.size()).queue.add(task);
+		else if (partitionByPmid)
+			threads.get((task.pmid.hashCode() & Integer.MAX_VALUE) % threads.size()).queue.add(task);
+		else
+			ready.add(task);
+	}
+	
+	/**
+	 * Schedules the first task in the queue of a PMID. When committing per file, the tasks of the same file that follow it are scheduled as well, since
+	 * they cannot be committed before the file is complete.
+	 */
+	private void scheduleFirst(LinkedList<Task> queue) {
+		Task first = queue.getFirst();
+		for (Task task : queue) {
+			if (task != first && (!commitPerFile || task.file != first.file))
+				break;
+			schedule(task);
+		}
+	}
+	
+	/**
+	 * @param dropped
+	 *            The PMID and version (as PMID_version) of the citations the writer could not write
+	 */
+	private synchronized void completed(List<Task> tasks, Set<String> dropped) {
+		for (Task task : tasks) {
+			if (dropped.contains(task.pmid + "_" + task.pmidVersion))
+				task.file.dropped++;
+			LinkedList<Task> queue = pmidToQueue.get(task.pmid);
+			queue.removeFirst();
+			if (queue.isEmpty())
+				pmidToQueue.remove(task.pmid);
+			else if (!queue.getFirst().scheduled)
+				scheduleFirst(queue);
+			task.file.outstanding--;
+		}
+		if (!commitPerFile)
+			capacity.release(tasks.size());
+		reportCompletedFiles();
+	}
+	
+	private void reportCompletedFiles() {
+		while (!files.isEmpty() && files.getFirst().allSubmitted && files.getFirst().outstanding == 0) {
+			FileProgress file = files.removeFirst();
+			if (file.dropped != 0)
+				System.err.println(file.dropped + " citations of " + file.fileName + " could not be written. The file is not recorded as completed");
+			if (fileLedger != null && !commitPerFile && !file.fileError && file.dropped == 0)
+				fileLedger.record(file.toFileRecord());
+			listener.fileCompleted(file.fileName, file.citations, file.fileError);
+		}
+	}
+	
+	/**
+	 * A citation to write. A task without citation marks the end of a file when committing per file, or tells a writer thread to stop when it has no
+	 * file either.
+	 */
+	private class Task {
+		public String			pmid;
+		public String			pmidVersion;
+		public ParsedCitation	citation;
+		public FileProgress		file;
+		public boolean			scheduled	= false;
+		
+		public Task(ParsedCitation citation, FileProgress file) {
+			this.citation = citation;
+			this.file = file;
+			if (citation != null) {
+				pmid = citation.pmid;
+				pmidVersion = citation.pmidVersion;
+			}
+		}
+	}
+	
+	private class FileProgress {
+		public String	fileName;
+		public int		index;
+		public int		outstanding		= 0;
+		public int		citations		= 0;
+		public boolean	allSubmitted	= false;
+		public boolean	fileError		= false;
+		public int		dropped			= 0;
+		public long		fileSize;
+		public String	checksum;
+		
+		// Only used by the writer thread the file is assigned to when committing per file:
+		public int		written			= 0;
+		public boolean	endOfFile		= false;
+		
+		public FileProgress(String fileName, int index) {
+			this.fileName = fileName;
+			this.index = index;
+		}
+		
+		public FileLedger.FileRecord toFileRecord() {
+			return new FileLedger.FileRecord(fileName, fileSize, checksum, citations);
+		}
+	}
+	
+	private class WriterThread implements Runnable {
+		public Thread				thread;
+		public BlockingQueue<Task>	queue;
+		private CitationWriter		citationWriter;
+		private List<Task>			uncommitted	= new ArrayList<Task>();
+		private List<Task>			heldBack	= new ArrayList<Task>();
+		private int					currentFile;
+		
+		public WriterThread(CitationWriter citationWriter, int number, BlockingQueue<Task> queue) {
+			this.citationWriter = citationWriter;
+			this.queue = queue;
+			currentFile = number;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Task task;
+					if (uncommitted.isEmpty() || commitPerFile)
+						task = queue.take();
+					else
+						task = queue.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+					if (task == null)
+						commit();
+					else if (task.file == null) {
+						commit();
+						return;
+					} else if (!commitPerFile)
+						write(task);
+					else if (task.file.index != currentFile)
+						heldBack.add(task);
+					else
+						writeCurrentFile(task);
+				}
+			} catch (Throwable t) {
+				failure = t;
+			}
+		}
+		
+		private void write(Task task) {
+			long start = System.nanoTime();
+			DatabaseThreads.startCall();
+			try {
+				citationWriter.write(task.citation);
+			} finally {
+				DatabaseThreads.endCall();
+			}
+			statistics.addBusyTime(System.nanoTime() - start);
+			statistics.addItems(1);
+			task.citation = null;
+			uncommitted.add(task);
+			if (uncommitted.size() >= citationWriter.getCitationsPerCommit())
+				commit();
+		}
+		
+		/**
+		 * Writes a task of the current file. When that completes the file, it is committed, and the held back tasks of the next file are written.
+		 */
+		private void writeCurrentFile(Task task) {
+			FileProgress file = task.file;
+			if (task.citation == null)
+				file.endOfFile = true;
+			else {
+				write(task);
+				file.written++;
+				capacity.release();
+			}
+			if (file.endOfFile && file.written == file.citations) {
+				if (fileLedger != null && !file.fileError)
+					citationWriter.recordFile(fileLedger, file.toFileRecord());
+				commit();
+				currentFile += threads.size();
+				Iterator<Task> iterator = heldBack.iterator();
+				List<Task> next = new ArrayList<Task>();
+				while (iterator.hasNext()) {
+					Task heldBackTask = iterator.next();
+					if (heldBackTask.file.index == currentFile) {
+						next.add(heldBackTask);
+						iterator.remove();
+					}
+				}
+				for (Task nextTask : next)
+					writeCurrentFile(nextTask);
+			}
+		}
+		
+		private void commit() {
+			long start = System.nanoTime();
+			DatabaseThreads.startCall();
+			try {
+				citationWriter.flush();
+			} finally {
+				DatabaseThreads.endCall();
+			}
+			statistics.addBusyTime(System.nanoTime() - start);
+			completed(uncommitted, citationWriter.takeDroppedCitations());
+			uncommitted.clear();
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.ohdsi.databases.ConnectionWrapper;
+import org.ohdsi.utilities.files.Row;
+
+/**
+ * Keeps track of which PMID and version combinations are in the database, so writers only need to delete the previous data of citations that are
+ * actually there. When loading the baseline into an empty schema, no deletes are needed at all. For each version there is one bit per PMID, so the
+ * whole of Medline takes only a few megabytes.<br>
+ * Writers must update the bitmap after committing, and must not write to the same schema at the same time as another process.
+ * 
+ * @author MSCHUEMI
+ *
+ */
+public class PmidPresenceBitmap {
+	
+	/**
+	 * Size of the range of PMIDs fetched in one query when loading the bitmap from the database.
+	 */
+	public static int				PMIDS_PER_QUERY	= 100000;
+	
+	private Map<Integer, BitSet>	versionToPmids	= new HashMap<Integer, BitSet>();
+	
+	/**
+	 * Creates a bitmap holding all PMID and version combinations currently in the medcit table.
+	 */
+	public static PmidPresenceBitmap load(ConnectionWrapper connectionWrapper) {
+		PmidPresenceBitmap bitmap = new PmidPresenceBitmap();
+		String table = Abbreviator.abbreviate("MedlineCitation");
+		Iterator<Row> iterator = connectionWrapper.query("SELECT MAX(pmid) FROM " + table).iterator();
+		String maxPmid = iterator.hasNext() ? iterator.next().getCells().get(0) : "";
+		if (maxPmid.length() != 0) {
+			System.out.println("Loading PMIDs already in the database");
+			int max = Integer.parseInt(maxPmid);
+			for (int start = 0; start <= max; start += PMIDS_PER_QUERY)
+				for (Row row : connectionWrapper.query("SELECT pmid, pmid_version FROM " + table + " WHERE pmid >= " + start + " AND pmid < "
+						+ (start + PMIDS_PER_QUERY)))
+					bitmap.getPmids(Integer.parseInt(row.getCells().get(1))).set(Integer.parseInt(row.getCells().get(0)));
+		}
+		System.out.println("Found " + bitmap.size() + " citations already in the database");
+		return bitmap;
+	}
+	
+	/**
+	 * @return A bitmap with the same content, that can be updated independently
+	 */
+	public synchronized PmidPresenceBitmap copy() {
+		PmidPresenceBitmap copy = new PmidPresenceBitmap();
+		for (Map.Entry<Integer, BitSet> entry : versionToPmids.entrySet())
+			copy.versionToPmids.put(entry.getKey(), (BitSet) entry.getValue().clone());
+		return copy;
+	}
+	
+	public synchronized boolean contains(String pmid, String pmid_version) {
+		BitSet pmids = versionToPmids.get(Integer.parseInt(pmid_version));
+		return pmids != null && pmids.get(Integer.parseInt(pmid));
+	}
+	
+	public synchronized void set(String pmid, String pmid_version, boolean present) {
+		getPmids(Integer.parseInt(pmid_version)).set(Integer.parseInt(pmid), present);
+	}
+	
+	/**
+	 * @return The number of PMID and version combinations in the bitmap
+	 */
+	public synchronized int size() {
+		int size = 0;
+		for (BitSet pmids : versionToPmids.values())
+			size += pmids.cardinality();
+		return size;
+	}
+	
+	private BitSet getPmids(int version) {
+		BitSet pmids = versionToPmids.get(version);
+		if (pmids == null) {
+			pmids = new BitSet();
+			versionToPmids.put(version, pmids);
+		}
+		return pmids;
+	}
+}
@@ -19,18 +19,14 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.ohdsi.databases.ConnectionWrapper;
 import org.ohdsi.utilities.XmlTools;
-import org.w3c.dom.Document;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
  * This class is used to create and populate a derived table with publication dates. In the original Medline XML the publication needs to be constructed by
@@ -44,14 +40,33 @@ public class PmidToDate {
 	private Pattern				yearPattern	= Pattern.compile("(19|20)[0-9][0-9]");
 	public static int			BATCH_SIZE	= 1000;
 	private static String		tableName	= "pmid_to_date";
-	private ConnectionWrapper	connectionWrapper;
 	
-	public PmidToDate(ConnectionWrapper connectionWrapper) {
-		this.connectionWrapper = connectionWrapper;
-		connectionWrapper.setDateFormat();
+	public static String getTableName() {
+		return tableName;
+	}
+	
+	/**
+	 * @return The paths of the elements and attributes read by getDateRow, as the names from MedlineCitation down separated by underscores
+	 */
+	public static List<String> getElementPaths() {
+		List<String> paths = new ArrayList<String>();
+		paths.add("MedlineCitation_PMID");
+		paths.add("MedlineCitation_PMID_Version");
+		paths.add("MedlineCitation_Article_ArticleDate_Year");
+		paths.add("MedlineCitation_Article_ArticleDate_Month");
+		paths.add("MedlineCitation_Article_ArticleDate_Day");
+		paths.add("MedlineCitation_Article_Journal_JournalIssue_PubDate_Year");
+		paths.add("MedlineCitation_Article_Journal_JournalIssue_PubDate_Month");
+		paths.add("MedlineCitation_Article_Journal_JournalIssue_PubDate_Day");
+		paths.add("MedlineCitation_Article_Journal_JournalIssue_PubDate_MedlineDate");
+		return paths;
 	}
 	
 	public static void createTable(ConnectionWrapper connectionWrapper) {
+		createTable(connectionWrapper, true);
+	}
+	
+	public static void createTable(ConnectionWrapper connectionWrapper, boolean createPrimaryKey) {
 		List<String> fields = new ArrayList<String>();
 		List<String> types = new ArrayList<String>();
 		fields.add("pmid");
@@ -67,64 +82,60 @@ public class PmidToDate {
 		primaryKey.add("PMID");
 		primaryKey.add("PMID_Version");
 		
-		connectionWrapper.createTable(tableName, fields, types, primaryKey);
+		connectionWrapper.createTable(tableName, fields, types, primaryKey, createPrimaryKey);
 	}
 	
 	private DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH);
 	
-	public void insertDates(Document document) {
-		connectionWrapper.setBatchMode(true);
-		NodeList citationNodes = document.getElementsByTagName("MedlineCitation");
-		for (int i = 0; i < citationNodes.getLength(); i++) {
-			Node citation = citationNodes.item(i);
-			Node pmidNode = XmlTools.getChildByName(citation, "PMID");
-			String pmid = XmlTools.getValue(pmidNode);
-			String pmid_version = XmlTools.getAttributeValue(pmidNode, "Version");
-			
-			// Could be an update, so delete old record just to be sure:
-			connectionWrapper.execute("DELETE FROM pmid_to_date WHERE pmid = " + pmid + " AND pmid_version = " + pmid_version);
-			
-			Node articleDateNode = XmlTools.getChildByName(XmlTools.getChildByName(citation, "Article"), "ArticleDate");
-			String articleYearString; 
-			String articleMonthString; 
-			String articleDayString; 
-			if (articleDateNode == null) {
-				articleYearString = null;
-				articleMonthString = null;
-				articleDayString = null;
-			} else {
-				articleYearString = XmlTools.getChildByNameValue(articleDateNode, "Year");
-				articleMonthString = XmlTools.getChildByNameValue(articleDateNode, "Month");
-				articleDayString = XmlTools.getChildByNameValue(articleDateNode, "Day");
-			}
-			Node pubDateNode = XmlTools.getChildByName(
-					XmlTools.getChildByName(XmlTools.getChildByName(XmlTools.getChildByName(citation, "Article"), "Journal"), "JournalIssue"), "PubDate");
-			String pubYearString = XmlTools.getChildByNameValue(pubDateNode, "Year");
-			String pubMonthString = XmlTools.getChildByNameValue(pubDateNode, "Month");
-			String pubDayString = XmlTools.getChildByNameValue(pubDateNode, "Day");
-			String medlineString = XmlTools.getChildByNameValue(pubDateNode, "MedlineDate");
-			String date = parseDate(articleYearString, articleMonthString, articleDayString, pubYearString, pubMonthString, pubDayString, medlineString);
-			// if (pmid.equals("27904912"))
-			// System.out.println("asdfsadf");
-			try {
-				date = dateFormat.format(dateFormat.parse(date));
-			} catch (ParseException e) {
-				System.err.println("Error parsing date with\n" + "article year = '" + articleYearString + "', month = '" + articleMonthString + "', day = '"
-						+ articleDayString + "\n" + "pub year = '" + pubYearString + "', month = '" + pubMonthString + "', day = '" + pubDayString + "\n"
-						+ "', medline date = '" + medlineString + "'");
-				date = null;
-			}
-			if (date == null) {
-				System.err.println("No valid date found for PMID " + pmid);
-			} else {
-				Map<String, String> field2Value = new HashMap<String, String>();
-				field2Value.put("pmid", pmid);
-				field2Value.put("pmid_version", pmid_version);
-				field2Value.put("date", date);
-				connectionWrapper.insertIntoTable(tableName, field2Value);
-			}
+	/**
+	 * Computes the publication date of the citation.
+	 * 
+	 * @param citation
+	 *            A MedlineCitation node
+	 * @return The row for the pmid_to_date table, or null if no valid date could be found.
+	 */
+	public TableRow getDateRow(Node citation) {
+		Node pmidNode = XmlTools.getChildByName(citation, "PMID");
+		String pmid = XmlTools.getValue(pmidNode);
+		String pmid_version = XmlTools.getAttributeValue(pmidNode, "Version");
+		
+		Node articleDateNode = XmlTools.getChildByName(XmlTools.getChildByName(citation, "Article"), "ArticleDate");
+		String articleYearString; 
+		String articleMonthString; 
+		String articleDayString; 
+		if (articleDateNode == null) {
+			articleYearString = null;
+			articleMonthString = null;
+			articleDayString = null;
+		} else {
+			articleYearString = XmlTools.getChildByNameValue(articleDateNode, "Year");
+			articleMonthString = XmlTools.getChildByNameValue(articleDateNode, "Month");
+			articleDayString = XmlTools.getChildByNameValue(articleDateNode, "Day");
+		}
+		Node pubDateNode = XmlTools.getChildByName(
+				XmlTools.getChildByName(XmlTools.getChildByName(XmlTools.getChildByName(citation, "Article"), "Journal"), "JournalIssue"), "PubDate");
+		String pubYearString = XmlTools.getChildByNameValue(pubDateNode, "Year");
+		String pubMonthString = XmlTools.getChildByNameValue(pubDateNode, "Month");
+		String pubDayString = XmlTools.getChildByNameValue(pubDateNode, "Day");
+		String medlineString = XmlTools.getChildByNameValue(pubDateNode, "MedlineDate");
+		String date = parseDate(articleYearString, articleMonthString, articleDayString, pubYearString, pubMonthString, pubDayString, medlineString);
+		try {
+			date = dateFormat.format(dateFormat.parse(date));
+		} catch (ParseException e) {
+			System.err.println("Error parsing date with\n" + "article year = '" + articleYearString + "', month = '" + articleMonthString + "', day = '"
+					+ articleDayString + "\n" + "pub year = '" + pubYearString + "', month = '" + pubMonthString + "', day = '" + pubDayString + "\n"
+					+ "', medline date = '" + medlineString + "'");
+			date = null;
+		}
+		if (date == null) {
+			System.err.println("No valid date found for PMID " + pmid);
+			return null;
 		}
-		connectionWrapper.setBatchMode(false);
+		TableRow row = new TableRow(tableName);
+		row.add("pmid", Long.parseLong(pmid));
+		row.add("pmid_version", Long.parseLong(pmid_version));
+		row.add("date", java.sql.Date.valueOf(date));
+		return row;
 	}
 	
 	private static List<String> getMonths() {
@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.ohdsi.utilities.XmlTools.ElementFilter;
+
+/**
+ * Restricts the tables and fields that are created and loaded, as configured with INCLUDE_TABLES, EXCLUDE_TABLES and EXCLUDE_FIELDS. Tables and fields
+ * can be specified as they are in the database (e.g. medcit_art_authorlist_author) or as in the XML (e.g. MedlineCitation_Article_AuthorList_Author),
+ * and fields as the table name and field name separated by a dot. If tables are included, all other tables are excluded, except the medcit table and
+ * tables that contain an included table. Excluding a table also excludes its sub tables. PMID, PMID_Version and the order fields are never excluded.<br>
+ * The projection is applied while streaming the XML, so excluded parts of a citation are skipped without creating any objects for them. Because element
+ * paths in the XML are the same as the table and field names, the filter only needs to know these names. For parsing, getElementFilter(tablesToFields)
+ * creates a filter that only reads the elements that end up in the given tables and fields, plus the elements PmidToDate needs.
+ *
+ * @author MSCHUEMI
+ *
+ */
+public class Projection {
+
+	private static String				MEDLINE_CITATION	= Abbreviator.abbreviate("MedlineCitation");
+
+	private Set<String>					includedTables		= new HashSet<String>();
+	private Set<String>					excludedTables		= new HashSet<String>();
+	private Set<String>					excludedFields		= new HashSet<String>();
+	private Map<String, String>			pathToAbbreviation	= new ConcurrentHashMap<String, String>();
+
+	/**
+	 * @param includeTables
+	 *            Comma-separated list of tables to include. If empty, all tables are included
+	 * @param excludeTables
+	 *            Comma-separated list of tables to exclude
+	 * @param excludeFields
+	 *            Comma-separated list of fields to exclude, each as table.field
+	 */
+	public Projection(String includeTables, String excludeTables, String excludeFields) {
+		for (String table : split(includeTables))
+			includedTables.add(Abbreviator.abbreviate(table));
+		for (String table : split(excludeTables))
+			excludedTables.add(Abbreviator.abbreviate(table));
+		for (String field : split(excludeFields)) {
+			int dot = field.indexOf('.');
+			if (dot == -1)
+				throw new RuntimeException("Excluded field '" + field + "' should be specified as table.field");
+			excludedFields.add(Abbreviator.abbreviate(field.substring(0, dot).trim()) + "_" + Abbreviator.abbreviate(field.substring(dot + 1).trim()));
+		}
+	}
+
+	private static String[] split(String list) {
+		if (list == null || list.trim().length() == 0)
+			return new String[0];
+		return list.trim().split("\\s*,\\s*");
+	}
+
+	/**
+	 * @return True if nothing is excluded
+	 */
+	public boolean isEmpty() {
+		return includedTables.size() == 0 && excludedTables.size() == 0 && excludedFields.size() == 0;
+	}
+
+	/**
+	 * @param table
+	 *            The table name, as in the database or as in the XML
+	 */
+	public boolean includesTable(String table) {
+		table = Abbreviator.abbreviate(table);
+		for (String excludedTable : excludedTables)
+			if (table.equals(excludedTable) || table.startsWith(excludedTable + "_"))
+				return false;
+		if (includedTables.size() == 0 || table.equals(MEDLINE_CITATION) || includedTables.contains(table))
+			return true;
+		for (String includedTable : includedTables)
+			if (includedTable.startsWith(table + "_"))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param table
+	 *            The table name, as in the database or as in the XML
+	 * @param field
+	 *            The field name, as in the database or as in the XML
+	 */
+	public boolean includesField(String table, String field) {
+		if (!includesTable(table))
+			return false;
+		field = Abbreviator.abbreviate(field);
+		if (field.equals("pmid") || field.equals("pmid_version") || field.endsWith("_order"))
+			return true;
+		return !excludedFields.contains(Abbreviator.abbreviate(table) + "_" + field);
+	}
+
+	private String abbreviate(String path) {
+		String abbreviation = pathToAbbreviation.get(path);
+		if (abbreviation == null) {
+			abbreviation = Abbreviator.abbreviate(path);
+			pathToAbbreviation.put(path, abbreviation);
+		}
+		return abbreviation;
+	}
+
+	/**
+	 * @return A filter for MedlineCitation elements that skips the excluded tables and fields, or null if nothing is excluded. Included tables are not
+	 *         taken into account, because without knowing which elements are tables it is unknown which elements belong to them.
+	 */
+	public ElementFilter getElementFilter() {
+		if (excludedTables.size() == 0 && excludedFields.size() == 0)
+			return null;
+		final Set<String> excludedPaths = new HashSet<String>(excludedTables);
+		excludedPaths.addAll(excludedFields);
+		return new ElementFilter() {
+
+			@Override
+			public int filterElement(String path) {
+				return excludedPaths.contains(abbreviate(path)) ? SKIP : KEEP;
+			}
+
+			@Override
+			public boolean acceptAttribute(String path) {
+				return !excludedPaths.contains(abbreviate(path));
+			}
+		};
+	}
+
+	/**
+	 * Creates a filter for MedlineCitation elements that only reads the elements and attributes that are stored in the given tables and fields, so
+	 * everything else is skipped while streaming. The elements from which PmidToDate computes the publication date are always read, also when they are
+	 * not stored, because the pmid_to_date table is written for every citation.
+	 *
+	 * @param tablesToFields
+	 *            The tables and their fields, as in the database
+	 */
+	public ElementFilter getElementFilter(Map<String, ? extends Collection<String>> tablesToFields) {
+		return getElementFilter(tablesToFields, Collections.<String> emptyList());
+	}
+
+	/**
+	 * Creates a filter as getElementFilter(tablesToFields) that also reads the elements and attributes at the given paths.
+	 *
+	 * @param tablesToFields
+	 *            The tables and their fields, as in the database
+	 * @param extraPaths
+	 *            Paths of elements and attributes that are needed although they are not stored, such as those used by the CitationFilter, as the names
+	 *            from MedlineCitation down separated by underscores (abbreviated or not)
+	 */
+	public ElementFilter getElementFilter(Map<String, ? extends Collection<String>> tablesToFields, Collection<String> extraPaths) {
+		final Set<String> prefixes = new HashSet<String>();
+		final Set<String> fieldPaths = new HashSet<String>();
+		for (Map.Entry<String, ? extends Collection<String>> entry : tablesToFields.entrySet()) {
+			String table = Abbreviator.abbreviate(entry.getKey());
+			addPrefixes(table, prefixes);
+			for (String field : entry.getValue()) {
+				field = field.toLowerCase();
+				// Fields that were renamed to avoid collision with the keys:
+				if (field.equals("other_pmid") || field.equals("other_pmid_version"))
+					field = field.substring("other_".length());
+				String fieldPath = table + "_" + field;
+				fieldPaths.add(fieldPath);
+				addPrefixes(fieldPath, prefixes);
+			}
+		}
+		List<String> unstoredPaths = new ArrayList<String>(PmidToDate.getElementPaths());
+		unstoredPaths.addAll(extraPaths);
+		for (String path : unstoredPaths) {
+			String fieldPath = Abbreviator.abbreviate(path);
+			fieldPaths.add(fieldPath);
+			addPrefixes(fieldPath, prefixes);
+		}
+		return new ElementFilter() {
+
+			@Override
+			public int filterElement(String path) {
+				path = abbreviate(path);
+				// The content of a field can contain markup, such as <i>, which must be kept:
+				if (fieldPaths.contains(path))
+					return KEEP_ALL;
+				return prefixes.contains(path) ? KEEP : SKIP;
+			}
+
+			@Override
+			public boolean acceptAttribute(String path) {
+				return fieldPaths.contains(abbreviate(path));
+			}
+		};
+	}
+
+	private static void addPrefixes(String path, Set<String> prefixes) {
+		prefixes.add(path);
+		for (int i = path.indexOf('_'); i != -1; i = path.indexOf('_', i + 1))
+			prefixes.add(path.substring(0, i));
+	}
+}
@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.ohdsi.utilities.concurrency.DatabaseThreads;
+
+/**
+ * Writes citations using one CitationWriter per group of tables, each with its own connection and thread, so large tables such as
+ * medcit_art_authorlist_author are written in parallel with the other tables, and a slow table only holds up its own group. Each citation is split into
+ * one part per group, holding the rows for the tables of that group. Every group gets a part, also when it is empty, so the previous rows of the
+ * citation are deleted from all tables. Each group collects and sends its own batches.<br>
+ * flush() waits until all groups have committed, so for the PmidOrderedScheduler a citation is only written once it is in all tables. The groups commit
+ * separately though, so if one group fails, the others may already have committed their part. A file can therefore not be committed as a whole, and
+ * table groups cannot be combined with committing per file or with the FileLedger.<br>
+ * The group threads are created by DatabaseThreads. They do not count towards MAX_DATABASE_CALLS themselves, since the PmidOrderedScheduler already counts
+ * the write or commit they are part of.
+ *
+ * @author MSCHUEMI
+ *
+ */
+public class TableGroupCitationWriter extends CitationWriter {
+
+	/**
+	 * Maximum number of citations waiting to be written by each group. When reached, write() blocks.
+	 */
+	public static int					MAX_QUEUED		= 1000;
+
+	private List<WriterGroup>			groups			= new ArrayList<WriterGroup>();
+	private Map<String, WriterGroup>	tableToGroup	= new HashMap<String, WriterGroup>();
+	private WriterGroup					citationGroup;
+	private volatile Throwable			failure;
+
+	/**
+	 * @param groupWriters
+	 *            One writer per group of tables, each with its own connection. Together they must cover all tables, and exactly one must write the medcit
+	 *            table.
+	 */
+	public TableGroupCitationWriter(List<CitationWriter> groupWriters) {
+		for (CitationWriter groupWriter : groupWriters) {
+			WriterGroup group = new WriterGroup(groupWriter, groups.size());
+			groups.add(group);
+			for (String table : groupWriter.tables)
+				tableToGroup.put(table, group);
+		}
+		citationGroup = tableToGroup.get(Abbreviator.abbreviate("MedlineCitation"));
+		if (citationGroup == null)
+			throw new RuntimeException("None of the table groups writes the " + Abbreviator.abbreviate("MedlineCitation") + " table");
+	}
+
+	@Override
+	public int getCitationsPerCommit() {
+		return citationGroup.citationWriter.getCitationsPerCommit();
+	}
+
+	@Override
+	public void write(ParsedCitation citation) {
+		checkFailure();
+		Map<WriterGroup, ParsedCitation> groupToPart = new HashMap<WriterGroup, ParsedCitation>();
+		for (WriterGroup group : groups) {
+			ParsedCitation part = new ParsedCitation(citation.pmid, citation.pmidVersion);
+			part.isDelete = citation.isDelete;
+			part.contentHash = citation.contentHash;
+			groupToPart.put(group, part);
+		}
+		for (TableRow row : citation.rows)
+			groupToPart.get(getGroup(row.table)).rows.add(row);
+		if (citation.dateRow != null)
+			groupToPart.get(getGroup(citation.dateRow.table)).dateRow = citation.dateRow;
+		for (WriterGroup group : groups)
+			group.write(groupToPart.get(group));
+	}
+
+	private WriterGroup getGroup(String table) {
+		WriterGroup group = tableToGroup.get(table);
+		if (group == null)
+			throw new RuntimeException("Table " + table + " is not in any of the table groups");
+		return group;
+	}
+
+	/**
+	 * Commits all groups, and waits until they are done.
+	 */
+	@Override
+	public void flush() {
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (WriterGroup group : groups)
+			futures.add(group.flush());
+		for (Future<?> future : futures)
+			waitFor(future);
+		checkFailure();
+	}
+
+	/**
+	 * Only call after flush(), when the groups are idle.
+	 */
+	@Override
+	public Set<String> takeDroppedCitations() {
+		Set<String> dropped = new HashSet<String>();
+		for (WriterGroup group : groups)
+			dropped.addAll(group.citationWriter.takeDroppedCitations());
+		return dropped;
+	}
+
+	/**
+	 * Not supported, since the groups do not commit a file together. MedlineParserMain does not allow table groups with the FileLedger.
+	 */
+	@Override
+	public void recordFile(FileLedger fileLedger, FileLedger.FileRecord fileRecord) {
+		throw new RuntimeException("Files cannot be recorded in the ledger when writing in table groups");
+	}
+
+	private void checkFailure() {
+		if (failure != null)
+			throw new RuntimeException("Error writing to the database", failure);
+	}
+
+	private static void waitFor(Future<?> future) {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * A writer with its own thread. Tasks are executed in the order in which they are submitted.
+	 */
+	private class WriterGroup {
+		public CitationWriter	citationWriter;
+		private ExecutorService	executor;
+		private Semaphore		capacity	= new Semaphore(MAX_QUEUED);
+
+		public WriterGroup(CitationWriter citationWriter, int number) {
+			this.citationWriter = citationWriter;
+			executor = Executors.newSingleThreadExecutor(DatabaseThreads.threadFactory("Table group writer " + number));
+		}
+
+		public void write(final ParsedCitation part) {
+			try {
+				capacity.acquire();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						citationWriter.write(part);
+					} finally {
+						capacity.release();
+					}
+				}
+			});
+		}
+
+		public Future<?> flush() {
+			return submit(new Runnable() {
+				@Override
+				public void run() {
+					citationWriter.flush();
+				}
+			});
+		}
+
+		public Future<?> submit(final Runnable task) {
+			return executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} catch (Throwable t) {
+						failure = t;
+					}
+				}
+			});
+		}
+	}
+}
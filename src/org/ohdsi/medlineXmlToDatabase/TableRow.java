@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single row ready to be inserted into the database. Table and field names are as they are in the database (so abbreviated), and values already have
+ * the Java type matching the field type (Long or Integer for numeric fields, String for text, java.sql.Date for dates).
+ * 
+ * @author MSCHUEMI
+ *
+ */
+public class TableRow {
+	public String		table;
+	public List<String>	fields	= new ArrayList<String>();
+	public List<Object>	values	= new ArrayList<Object>();
+	
+	/**
+	 * The same values, with one entry for every field of the table in table order (null for missing values), so they can be handed to a bulk load
+	 * without looking up the fields. Null if the row was not created this way.
+	 */
+	public Object[]		tableValues;
+	
+	public TableRow(String table) {
+		this.table = table;
+	}
+	
+	public void add(String field, Object value) {
+		fields.add(field);
+		values.add(value);
+	}
+	
+	/**
+	 * @return The value of the field, or null if the row does not have the field
+	 */
+	public Object get(String field) {
+		int index = fields.indexOf(field);
+		if (index == -1)
+			return null;
+		else
+			return values.get(index);
+	}
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ohdsi.databases.ConnectionWrapper;
+import org.ohdsi.databases.ConnectionWrapper.FieldInfo;
+import org.ohdsi.utilities.files.Row;
+
+/**
+ * The fields and primary key of a table, as they are in the database (in lowercase). The order fields are the fields of the primary key after PMID and
+ * PMID_Version.
+ *
+ * @author MSCHUEMI
+ *
+ */
+public class TableStructure {
+	public String		table;
+	public List<String>	fields		= new ArrayList<String>();
+	public List<String>	primaryKey	= new ArrayList<String>();
+	public List<String>	orderFields	= new ArrayList<String>();
+
+	public TableStructure(ConnectionWrapper connectionWrapper, String table) {
+		this.table = table;
+		for (FieldInfo fieldInfo : connectionWrapper.getFieldInfo(table))
+			fields.add(fieldInfo.name.toLowerCase());
+		for (String field : MedlineCitationAnalyser.getPrimaryKey(fields))
+			primaryKey.add(field.toLowerCase());
+		orderFields.addAll(primaryKey.subList(2, primaryKey.size()));
+	}
+
+	public String getKey(Row row) {
+		StringBuilder key = new StringBuilder();
+		for (String field : primaryKey)
+			key.append(row.get(field)).append('_');
+		return key.toString();
+	}
+
+	public String getKey(TableRow row) {
+		StringBuilder key = new StringBuilder();
+		for (String field : primaryKey)
+			key.append(row.get(field)).append('_');
+		return key.toString();
+	}
+
+	public String getWhereClause() {
+		StringBuilder where = new StringBuilder();
+		for (String field : primaryKey)
+			where.append(where.length() == 0 ? " WHERE " : " AND ").append(field).append(" = ?");
+		return where.toString();
+	}
+}
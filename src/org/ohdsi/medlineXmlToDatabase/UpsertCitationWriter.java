@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ohdsi.databases.ConnectionWrapper;
+import org.ohdsi.utilities.StringUtilities;
+import org.ohdsi.utilities.collections.OneToManyList;
+
+/**
+ * Writes citations using the native upsert of the database (INSERT ... ON CONFLICT DO UPDATE on PostgreSQL, MERGE on SQL Server, INSERT ... ON
+ * DUPLICATE KEY UPDATE on MySQL), so every row is written with a single statement whether or not it is already in the database. All fields of the table
+ * are written, so fields that are no longer in a revised citation are set to NULL.<br>
+ * A revised citation can have fewer rows than before (for example fewer authors). For the citations that might be in the database, these stale rows are
+ * removed with one DELETE per table and version for every PMIDS_PER_DELETE citations, which deletes all rows of the citations except the ones being
+ * upserted, using an anti-join with a table of the keys of the upserted rows. Since the two never touch the same row, the deletes and upserts are sent
+ * in the same batch. Deleted citations are removed as by the CitationWriter.<br>
+ * Upserts need the primary keys, so this cannot be combined with DEFER_INDEXES.
+ *
+ * @author MSCHUEMI
+ *
+ */
+public class UpsertCitationWriter extends CitationWriter {
+
+	private Map<String, TableStructure>	tableToStructure	= new LinkedHashMap<String, TableStructure>();
+
+	/**
+	 * @param connectionWrapper
+	 *            The connection to write to
+	 * @param tables
+	 *            The (unabbreviated) names of the medcit tables to write
+	 * @param pmidPresenceBitmap
+	 *            The citations currently in the database, shared by all writers. If null, stale rows are deleted for every citation.
+	 */
+	public UpsertCitationWriter(ConnectionWrapper connectionWrapper, Set<String> tables, PmidPresenceBitmap pmidPresenceBitmap) {
+		super(connectionWrapper, tables, pmidPresenceBitmap);
+		// This includes the pmid_to_date and citation_hash tables, which are written together with the medcit table:
+		for (String table : this.tables) {
+			TableStructure structure = new TableStructure(connectionWrapper, table);
+			Set<String> primaryKey = connectionWrapper.getPrimaryKeyFields(table);
+			if (primaryKey.size() == 0)
+				throw new RuntimeException("Table " + table + " has no primary key, which is needed for upserts. Build the primary keys first, "
+						+ "or do not use WRITE_MODE = UPSERT together with DEFER_INDEXES");
+			if (!primaryKey.equals(new HashSet<String>(structure.primaryKey)))
+				throw new RuntimeException("Table " + table + " has primary key (" + StringUtilities.join(primaryKey, ",")
+						+ "), but upserts need a primary key on (" + StringUtilities.join(structure.primaryKey, ",") + ")");
+			tableToStructure.put(table, structure);
+		}
+	}
+
+	@Override
+	protected List<ParsedCitation> revise(List<ParsedCitation> citations) {
+		List<ParsedCitation> deletedCitations = new ArrayList<ParsedCitation>();
+		List<ParsedCitation> revisedCitations = new ArrayList<ParsedCitation>();
+		for (ParsedCitation citation : citations)
+			if (citation.isDelete)
+				deletedCitations.add(citation);
+			else {
+				if (mightBeInDatabase(citation))
+					revisedCitations.add(citation);
+				upsert(citation);
+			}
+		deleteStaleRows(revisedCitations);
+		return deletedCitations;
+	}
+
+	private void upsert(ParsedCitation citation) {
+		for (TableRow row : citation.rows)
+			upsert(row);
+		if (citation.dateRow != null)
+			upsert(citation.dateRow);
+	}
+
+	private void upsert(TableRow row) {
+		TableStructure structure = tableToStructure.get(row.table);
+		List<Object> values = new ArrayList<Object>(structure.fields.size());
+		for (String field : structure.fields)
+			values.add(row.get(field));
+		connectionWrapper.upsertIntoTable(row.table, structure.fields, values, structure.primaryKey);
+	}
+
+	/**
+	 * Deletes all rows of the citations that are not in the citations anymore. For every table and version, a single statement deletes the rows of the
+	 * citations except those with the keys of the upserted rows.
+	 */
+	private void deleteStaleRows(List<ParsedCitation> citations) {
+		OneToManyList<String, ParsedCitation> versionToCitations = new OneToManyList<String, ParsedCitation>();
+		for (ParsedCitation citation : citations)
+			versionToCitations.put(citation.pmidVersion, citation);
+		for (String pmid_version : versionToCitations.keySet()) {
+			List<ParsedCitation> versionCitations = versionToCitations.get(pmid_version);
+			for (int start = 0; start < versionCitations.size(); start += PMIDS_PER_DELETE) {
+				List<ParsedCitation> chunk = versionCitations.subList(start, Math.min(start + PMIDS_PER_DELETE, versionCitations.size()));
+				List<String> pmids = new ArrayList<String>(chunk.size());
+				for (ParsedCitation citation : chunk)
+					pmids.add(citation.pmid);
+				String condition = "pmid_version = " + pmid_version + " AND pmid IN (" + StringUtilities.join(pmids, ",") + ")";
+				for (TableStructure structure : tableToStructure.values())
+					deleteStaleRows(structure, chunk, condition);
+			}
+		}
+	}
+
+	private void deleteStaleRows(TableStructure structure, List<ParsedCitation> citations, String condition) {
+		List<String> keyFields = new ArrayList<String>(structure.orderFields.size() + 1);
+		keyFields.add("pmid");
+		keyFields.addAll(structure.orderFields);
+		List<List<Object>> keys = new ArrayList<List<Object>>();
+		// Without order fields a citation has at most one row per table, which is replaced by the upsert:
+		boolean mightHaveStaleRows = structure.orderFields.size() != 0;
+		for (ParsedCitation citation : citations) {
+			boolean hasRows = false;
+			for (TableRow row : citation.rows)
+				if (row.table.equals(structure.table)) {
+					keys.add(getKey(keyFields, citation, row));
+					hasRows = true;
+				}
+			if (citation.dateRow != null && citation.dateRow.table.equals(structure.table)) {
+				keys.add(getKey(keyFields, citation, citation.dateRow));
+				hasRows = true;
+			}
+			if (!hasRows)
+				mightHaveStaleRows = true;
+		}
+		if (mightHaveStaleRows)
+			connectionWrapper.deleteExcept(structure.table, condition, keyFields, keys);
+	}
+
+	private List<Object> getKey(List<String> keyFields, ParsedCitation citation, TableRow row) {
+		List<Object> key = new ArrayList<Object>(keyFields.size());
+		key.add(citation.pmid);
+		for (String field : keyFields.subList(1, keyFields.size()))
+			key.add(row.get(field));
+		return key;
+	}
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Makes sure only the final state of each PMID and version is written when loading many update files at once. A pre-pass over the files counts how
+ * often each PMID and version occurs (as a MedlineCitation or in a DeleteCitation). During the load, every occurrence except the last is skipped. This
+ * gives the same result as writing all occurrences, because writing a citation or delete replaces all previous data of the PMID and version.<br>
+ * Like the PmidPresenceBitmap, there is one bit per PMID for each version to remember which have been seen, so only PMIDs that occur more than once
+ * take up more memory.
+ *
+ * @author MSCHUEMI
+ *
+ */
+public class VersionConsolidator {
+
+	private Map<Integer, BitSet>	versionToSeen	= new HashMap<Integer, BitSet>();
+	private Map<String, Integer>	keyToRemaining	= new HashMap<String, Integer>();
+	private long					occurrences		= 0;
+	private long					superseded		= 0;
+
+	/**
+	 * Counts the occurrences of each PMID and version in the files. The iterator must return the same files that will be loaded.
+	 */
+	public static VersionConsolidator scan(XMLFileIterator iterator) {
+		System.out.println("Finding the final version of each citation");
+		long start = System.currentTimeMillis();
+		VersionConsolidator consolidator = new VersionConsolidator();
+		while (iterator.hasNext()) {
+			CitationIterator citationIterator = iterator.next();
+			while (citationIterator.hasNext()) {
+				Node node = citationIterator.next();
+				if (node.getNodeName().equals(CitationIterator.MEDLINE_CITATION)) {
+					Node pmidNode = findPmidNode(node);
+					if (pmidNode != null)
+						consolidator.add(pmidNode);
+				} else {
+					NodeList children = node.getChildNodes();
+					for (int i = 0; i < children.getLength(); i++)
+						if (children.item(i).getNodeName().equals("PMID"))
+							consolidator.add(children.item(i));
+				}
+			}
+		}
+		System.out.println("Found " + consolidator.occurrences + " citations, of which " + consolidator.getRepeated() + " will be superseded, in "
+				+ (System.currentTimeMillis() - start) / 1000 + "s");
+		return consolidator;
+	}
+
+	/**
+	 * The first PMID in document order, as used by the MedlineCitationParser.
+	 */
+	private static Node findPmidNode(Node node) {
+		NodeList children = node.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			Node child = children.item(i);
+			if (child.getNodeName().equals("PMID"))
+				return child;
+			Node pmidNode = findPmidNode(child);
+			if (pmidNode != null)
+				return pmidNode;
+		}
+		return null;
+	}
+
+	private void add(Node pmidNode) {
+		String pmid = pmidNode.getFirstChild().getNodeValue();
+		String pmidVersion = pmidNode.getAttributes().getNamedItem("Version").getNodeValue();
+		occurrences++;
+		BitSet seen = versionToSeen.get(Integer.parseInt(pmidVersion));
+		if (seen == null) {
+			seen = new BitSet();
+			versionToSeen.put(Integer.parseInt(pmidVersion), seen);
+		}
+		int pmidNumber = Integer.parseInt(pmid);
+		if (seen.get(pmidNumber)) {
+			String key = pmid + "_" + pmidVersion;
+			Integer remaining = keyToRemaining.get(key);
+			keyToRemaining.put(key, remaining == null ? 2 : remaining + 1);
+		} else
+			seen.set(pmidNumber);
+	}
+
+	private long getRepeated() {
+		long repeated = 0;
+		for (Integer remaining : keyToRemaining.values())
+			repeated += remaining - 1;
+		return repeated;
+	}
+
+	/**
+	 * Must be called once for every citation that is loaded, in file order.
+	 *
+	 * @return True if this is the last occurrence of the PMID and version, and therefore needs to be written
+	 */
+	public boolean isFinal(ParsedCitation citation) {
+		String key = citation.pmid + "_" + citation.pmidVersion;
+		Integer remaining = keyToRemaining.get(key);
+		if (remaining == null)
+			return true;
+		if (remaining == 1) {
+			keyToRemaining.remove(key);
+			return true;
+		}
+		keyToRemaining.put(key, remaining - 1);
+		superseded++;
+		return false;
+	}
+
+	/**
+	 * @return The number of citations skipped so far because they were superseded
+	 */
+	public long getSuperseded() {
+		return superseded;
+	}
+}
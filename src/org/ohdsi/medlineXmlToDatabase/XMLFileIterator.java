@@ -16,36 +16,52 @@
 package org.ohdsi.medlineXmlToDatabase;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.ohdsi.utilities.RandomUtilities;
-import org.ohdsi.utilities.concurrency.BatchProcessingThread;
-import org.w3c.dom.Document;
-import org.xml.sax.SAXException;
+import org.ohdsi.utilities.XmlTools.ElementFilter;
+import org.ohdsi.utilities.concurrency.StageStatistics;
 
 /**
- * Iterates over all xml.gz files in a specified folder, decompressing and parsing them in a separate thread.
+ * Iterates over all xml.gz files in a specified folder, in filename order. For each file a CitationIterator is returned, which streams the citations in the
+ * file. A pool of decode threads decompresses and parses up to filesInFlight files at the same time, counting the file that was last returned by next(),
+ * which is still being consumed until next() is called again.
  * 
  * @author Schuemie
  * 
  */
-public class XMLFileIterator implements Iterator<Document> {
+public class XMLFileIterator implements Iterator<CitationIterator> {
 	
-	private Iterator<File>				fileIterator;
-	private DecompressAndParseThread	decompressAndParseThread	= new DecompressAndParseThread();
-	private boolean						hasNext						= true;
+	/**
+	 * Number of threads used for decompressing and parsing files.
+	 */
+	public static int						DECODE_THREADS		= 2;
+	
+	/**
+	 * Maximum number of files that are decompressed and parsed at the same time, including the file currently being consumed.
+	 */
+	public static int						FILES_IN_FLIGHT		= 2;
+	
+	private String							folder;
+	private int								sampleSize;
+	private FileLedger						fileLedger;
+	private Iterator<File>					fileIterator;
+	private LinkedList<CitationIterator>	inFlight			= new LinkedList<CitationIterator>();
+	private CitationIterator				current;
+	private int								filesInFlight;
+	private ExecutorService					executor;
+	private StageStatistics					statistics;
+	private ElementFilter					filter;
+	private CitationFilter					citationFilter;
 	
 	/**
 	 * @param folder
@@ -63,10 +79,60 @@ public class XMLFileIterator implements Iterator<Document> {
 	 *            Specifies the maximum number of files that is randomly sampled
 	 */
 	public XMLFileIterator(String folder, int sampleSize) {
+		this.folder = folder;
+		this.sampleSize = sampleSize;
+	}
+	
+	/**
+	 * @param fileLedger
+	 *            Files that the ledger reports as completed are skipped. Can be null
+	 */
+	public void setFileLedger(FileLedger fileLedger) {
+		checkNotStarted();
+		this.fileLedger = fileLedger;
+	}
+	
+	/**
+	 * @param filter
+	 *            Filter applied to MedlineCitation elements while streaming, so parts that are not needed are never materialized. Can be null
+	 */
+	public void setElementFilter(ElementFilter filter) {
+		checkNotStarted();
+		this.filter = filter;
+	}
+	
+	/**
+	 * @param citationFilter
+	 *            Citations that do not pass this filter are dropped as soon as they have been read. Can be null
+	 */
+	public void setCitationFilter(CitationFilter citationFilter) {
+		checkNotStarted();
+		this.citationFilter = citationFilter;
+	}
+	
+	private void checkNotStarted() {
+		if (fileIterator != null)
+			throw new RuntimeException("The options of the XMLFileIterator must be set before the first file is requested");
+	}
+	
+	/**
+	 * Lists the files and starts decoding the first ones, using DECODE_THREADS threads and at most FILES_IN_FLIGHT files in flight. This is done when
+	 * the first file is requested, so the options can still be set after construction.
+	 */
+	private void start() {
+		if (fileIterator != null)
+			return;
 		List<File> files = new ArrayList<File>();
+		int skipped = 0;
 		for (File file : new File(folder).listFiles())
-			if (file.getAbsolutePath().endsWith("xml.gz"))
-				files.add(file);
+			if (file.getAbsolutePath().endsWith("xml.gz")) {
+				if (fileLedger != null && fileLedger.isCompleted(file))
+					skipped++;
+				else
+					files.add(file);
+			}
+		if (skipped != 0)
+			System.out.println("Skipping " + skipped + " files that have already been processed");
 		files = RandomUtilities.sampleWithoutReplacement(files, sampleSize);
 		Collections.sort(files, new Comparator<File>() {
 			@Override
@@ -75,68 +141,61 @@ public class XMLFileIterator implements Iterator<Document> {
 			}
 		});
 		fileIterator = files.iterator();
-		if (fileIterator.hasNext())
-			decompressAndParseThread.startProcessing(fileIterator.next());
-		else {
-			hasNext = false;
-			decompressAndParseThread.terminate();
-		}
+		int decodeThreads = Math.max(1, DECODE_THREADS);
+		filesInFlight = Math.max(1, FILES_IN_FLIGHT);
+		statistics = new StageStatistics("Decode", decodeThreads);
+		executor = Executors.newFixedThreadPool(decodeThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Decoder");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		fillPipeline();
+	}
+	
+	/**
+	 * Starts decoding files until the maximum number of files in flight is reached. Because tasks are started in filename order, the file the consumer
+	 * is waiting for is always either finished or running, so decode threads blocked on later files cannot starve it.
+	 */
+	private void fillPipeline() {
+		while (inFlight.size() + (current == null ? 0 : 1) < filesInFlight && fileIterator.hasNext())
+			inFlight.add(new CitationIterator(fileIterator.next(), executor, statistics, filter, citationFilter));
+		if (!fileIterator.hasNext())
+			executor.shutdown();
+	}
+	
+	/**
+	 * @return Statistics on the time spent decompressing and parsing files
+	 */
+	public StageStatistics getStatistics() {
+		start();
+		return statistics;
 	}
 	
 	@Override
 	public boolean hasNext() {
-		return hasNext;
+		start();
+		return !inFlight.isEmpty() || fileIterator.hasNext();
 	}
 	
+	/**
+	 * Returns the next file. The consumer is assumed to be done with the previous file, so another file can start decoding in its place.
+	 */
 	@Override
-	public Document next() {
-		decompressAndParseThread.waitUntilFinished();
-		Document document = decompressAndParseThread.getDocument();
-		if (fileIterator.hasNext())
-			decompressAndParseThread.startProcessing(fileIterator.next());
-		else {
-			hasNext = false;
-			decompressAndParseThread.terminate();
-		}
-		return document;
+	public CitationIterator next() {
+		start();
+		current = null;
+		fillPipeline();
+		if (inFlight.isEmpty())
+			throw new NoSuchElementException();
+		current = inFlight.removeFirst();
+		return current;
 	}
 	
 	@Override
 	public void remove() {
 		throw new RuntimeException("Calling unimplemented method remove in " + this.getClass().getName());
 	}
-	
-	private class DecompressAndParseThread extends BatchProcessingThread {
-		
-		private File		file;
-		private Document	document;
-		
-		public void startProcessing(File file) {
-			this.file = file;
-			proceed();
-		}
-		
-		public Document getDocument() {
-			return document;
-		}
-		
-		@Override
-		protected void process() {
-			System.out.println("Processing " + file.getName());
-			try {
-				FileInputStream fileInputStream = new FileInputStream(file);
-				GZIPInputStream gzipInputStream = new GZIPInputStream(fileInputStream);
-				DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-				document = builder.parse(gzipInputStream);
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
-			} catch (ParserConfigurationException e) {
-				e.printStackTrace();
-			} catch (SAXException e) {
-				e.printStackTrace();
-			}
-		}
-	}
 }
@@ -5,6 +5,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.ohdsi.databases.BackgroundInsertThread;
 import org.ohdsi.databases.ConnectionWrapper;
 import org.ohdsi.databases.DbType;
 import org.ohdsi.databases.InsertableDbTable;
@@ -50,17 +51,20 @@ public class MeshParserMain {
 		connectionWrapper.use(schema);
 		
 		treeNumberToUi = new HashMap<String, String>();
-		InsertableDbTable outTerms = new InsertableDbTable(connectionWrapper, "mesh_term");
-		InsertableDbTable outRelationship = new InsertableDbTable(connectionWrapper, "mesh_relationship");
+		// Rows are inserted by a separate thread while parsing continues:
+		BackgroundInsertThread insertThread = new BackgroundInsertThread();
+		InsertableDbTable outTerms = insertThread.createTable(connectionWrapper, "mesh_term");
+		InsertableDbTable outRelationship = insertThread.createTable(connectionWrapper, "mesh_relationship");
 		
 		MainMeshParser.parse(meshFile, outTerms, outRelationship, treeNumberToUi);
 		SupplementaryMeshParser.parse(meshSupplementFile, outTerms, outRelationship);
 		outTerms.close();
 		outRelationship.close();
 
-		InsertableDbTable outAncestor = new InsertableDbTable(connectionWrapper, "mesh_ancestor");
+		InsertableDbTable outAncestor = insertThread.createTable(connectionWrapper, "mesh_ancestor");
 		generateAncestorTable(outAncestor);
 		outAncestor.close();
+		insertThread.finish();
 	}
 
 	private void generateAncestorTable(InsertableDbTable outAncestor) {
@@ -19,6 +19,9 @@ import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -26,6 +29,9 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -111,4 +117,161 @@ public class XmlTools {
 		Node attributeNode = node.getAttributes().getNamedItem(attributeName);
 		return (attributeNode != null && attributeNode.getNodeValue().equals(attributeValue));
 	}
+	
+	/**
+	 * Decides which parts of an element are read by readElement. Paths consist of the names of the element read by readElement and its descendants,
+	 * separated by underscores, with the attribute name appended for attributes.
+	 */
+	public interface ElementFilter {
+		public static int	SKIP		= 0;
+		public static int	KEEP		= 1;
+		public static int	KEEP_ALL	= 2;
+		
+		/**
+		 * @return SKIP to leave out the element and all its descendants, KEEP to read the element, or KEEP_ALL to read the element and all its
+		 *         descendants without consulting the filter again
+		 */
+		public int filterElement(String path);
+		
+		public boolean acceptAttribute(String path);
+	}
+	
+	/**
+	 * Reads the element the StAX reader is currently positioned on, including all its descendants, into a new DOM element owned by the given document.
+	 * On return the reader is positioned on the matching END_ELEMENT event. Adjacent text and CDATA events are merged into a single text node, as a DOM
+	 * parser would.
+	 */
+	public static Element readElement(XMLStreamReader reader, Document document) throws XMLStreamException {
+		return readElement(reader, document, null);
+	}
+	
+	/**
+	 * Reads the element the StAX reader is currently positioned on as readElement(reader, document), except that descendants and attributes rejected by
+	 * the filter are skipped in the stream, without creating any nodes for them.
+	 * 
+	 * @param filter
+	 *            The filter. If null, everything is read
+	 */
+	public static Element readElement(XMLStreamReader reader, Document document, ElementFilter filter) throws XMLStreamException {
+		// The paths of the current element and its ancestors, as far as the filter is consulted for them:
+		List<String> paths = null;
+		if (filter != null) {
+			paths = new ArrayList<String>();
+			paths.add(getQualifiedName(reader.getPrefix(), reader.getLocalName()));
+		}
+		Element root = createElement(reader, document, filter == null ? null : paths.get(0), filter);
+		Node current = root;
+		int depth = 1;
+		// Depth of the element for which the filter returned KEEP_ALL:
+		int keepAllDepth = Integer.MAX_VALUE;
+		while (depth > 0) {
+			switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					Element element;
+					if (filter != null && depth < keepAllDepth) {
+						String path = paths.get(depth - 1) + "_" + getQualifiedName(reader.getPrefix(), reader.getLocalName());
+						int decision = filter.filterElement(path);
+						if (decision == ElementFilter.SKIP) {
+							skipElement(reader);
+							break;
+						}
+						if (decision == ElementFilter.KEEP_ALL)
+							keepAllDepth = depth + 1;
+						element = createElement(reader, document, path, filter);
+						paths.add(path);
+					} else
+						element = createElement(reader, document, null, null);
+					current.appendChild(element);
+					current = element;
+					depth++;
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if (filter != null && depth <= keepAllDepth) {
+						paths.remove(paths.size() - 1);
+						if (depth == keepAllDepth)
+							keepAllDepth = Integer.MAX_VALUE;
+					}
+					current = current.getParentNode();
+					depth--;
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					Node lastChild = current.getLastChild();
+					if (lastChild != null && lastChild.getNodeType() == Node.TEXT_NODE)
+						lastChild.setNodeValue(lastChild.getNodeValue() + reader.getText());
+					else
+						current.appendChild(document.createTextNode(reader.getText()));
+					break;
+			}
+		}
+		return root;
+	}
+	
+	/**
+	 * Removes the descendants and attributes of an element read without a filter that the filter rejects, so the element is the same as when it had
+	 * been read with readElement(reader, document, filter).
+	 */
+	public static void filterElement(Element element, ElementFilter filter) {
+		filterElement(element, element.getNodeName(), filter);
+		// Text around a removed element is a single text node when read with the filter:
+		element.normalize();
+	}
+	
+	private static void filterElement(Element element, String path, ElementFilter filter) {
+		filterAttributes(element, path, filter);
+		Node child = element.getFirstChild();
+		while (child != null) {
+			Node next = child.getNextSibling();
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				String childPath = path + "_" + child.getNodeName();
+				int decision = filter.filterElement(childPath);
+				if (decision == ElementFilter.SKIP)
+					element.removeChild(child);
+				else if (decision == ElementFilter.KEEP_ALL)
+					filterAttributes((Element) child, childPath, filter);
+				else
+					filterElement((Element) child, childPath, filter);
+			}
+			child = next;
+		}
+	}
+	
+	private static void filterAttributes(Element element, String path, ElementFilter filter) {
+		NamedNodeMap attributes = element.getAttributes();
+		for (int i = attributes.getLength() - 1; i >= 0; i--)
+			if (!filter.acceptAttribute(path + "_" + attributes.item(i).getNodeName()))
+				element.removeAttribute(attributes.item(i).getNodeName());
+	}
+	
+	/**
+	 * Positions the reader on the END_ELEMENT event matching the current START_ELEMENT event.
+	 */
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+		}
+	}
+	
+	private static Element createElement(XMLStreamReader reader, Document document, String path, ElementFilter filter) {
+		Element element = document.createElement(getQualifiedName(reader.getPrefix(), reader.getLocalName()));
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			String name = getQualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i));
+			if (filter == null || filter.acceptAttribute(path + "_" + name))
+				element.setAttribute(name, reader.getAttributeValue(i));
+		}
+		return element;
+	}
+	
+	private static String getQualifiedName(String prefix, String localName) {
+		if (prefix == null || prefix.length() == 0)
+			return localName;
+		else
+			return prefix + ":" + localName;
+	}
 }
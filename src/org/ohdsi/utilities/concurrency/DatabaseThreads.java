@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.utilities.concurrency;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads that spend most of their time waiting for the database, and limits the number of database calls in progress at the same time.<br>
+ * When VIRTUAL_THREADS is true and the JVM supports virtual threads (Java 21 or higher), these are virtual threads, so hundreds of them can wait for the
+ * database without needing hundreds of operating system threads. Virtual threads are created through reflection, so this class still compiles and runs
+ * on Java 7, where platform threads are used instead.<br>
+ * If MAX_DATABASE_CALLS is greater than zero, threads should wrap their database work in startCall() and endCall(), so at most that many calls are sent
+ * to the database at once, however many threads there are.
+ *
+ * @author Schuemie
+ *
+ */
+public class DatabaseThreads {
+
+	/**
+	 * Use virtual threads if the JVM supports them.
+	 */
+	public static boolean				VIRTUAL_THREADS		= false;
+
+	/**
+	 * Maximum number of database calls in progress at the same time. Zero means no limit.
+	 */
+	public static int					MAX_DATABASE_CALLS	= 0;
+
+	private static Method				ofVirtual;
+	private static Method				name;
+	private static Method				unstarted;
+	private static volatile Semaphore	calls;
+
+	static {
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			name = builderClass.getMethod("name", String.class);
+			unstarted = builderClass.getMethod("unstarted", Runnable.class);
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+	}
+
+	/**
+	 * @return True if the JVM supports virtual threads
+	 */
+	public static boolean isVirtualThreadsAvailable() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * @return True if newThread() creates virtual threads
+	 */
+	public static boolean isUsingVirtualThreads() {
+		return VIRTUAL_THREADS && isVirtualThreadsAvailable();
+	}
+
+	/**
+	 * Creates a thread that has not been started yet. This is a virtual thread if VIRTUAL_THREADS is true and the JVM supports them, otherwise a daemon
+	 * platform thread.
+	 */
+	public static Thread newThread(Runnable runnable, String threadName) {
+		if (isUsingVirtualThreads())
+			try {
+				Object builder = name.invoke(ofVirtual.invoke(null), threadName);
+				return (Thread) unstarted.invoke(builder, runnable);
+			} catch (Exception e) {
+				throw new RuntimeException("Cannot create virtual thread", e);
+			}
+		Thread thread = new Thread(runnable, threadName);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * @return A factory creating threads with newThread(), for use with an ExecutorService
+	 */
+	public static ThreadFactory threadFactory(final String threadName) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				return DatabaseThreads.newThread(runnable, threadName);
+			}
+		};
+	}
+
+	/**
+	 * Waits until fewer than MAX_DATABASE_CALLS calls are in progress. Every call to startCall() must be followed by a call to endCall().
+	 */
+	public static void startCall() {
+		Semaphore semaphore = getCalls();
+		if (semaphore != null)
+			try {
+				semaphore.acquire();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+	}
+
+	public static void endCall() {
+		Semaphore semaphore = getCalls();
+		if (semaphore != null)
+			semaphore.release();
+	}
+
+	/**
+	 * The semaphore is created the first time it is needed, after MAX_DATABASE_CALLS has been read from the ini file. After that, the calls only read the
+	 * volatile field, so threads do not have to take a lock for every database call.
+	 */
+	private static Semaphore getCalls() {
+		Semaphore semaphore = calls;
+		if (semaphore != null)
+			return semaphore;
+		if (MAX_DATABASE_CALLS <= 0)
+			return null;
+		synchronized (DatabaseThreads.class) {
+			if (calls == null)
+				calls = new Semaphore(MAX_DATABASE_CALLS, true);
+			return calls;
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.utilities.concurrency;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue for handing items from a single producer thread to one or more consumer threads. Each item is taken by exactly one
+ * consumer, in the order in which it was published.<br>
+ * Every slot has a sequence number that tells whether it is free, published, or being consumed, so producer and consumers never need a lock: the
+ * producer claims a range of free slots, fills them and publishes them, and a consumer claims a range of published slots with a single compare-and-set.
+ * Claiming and publishing in batches means the shared counters are touched once per batch instead of once per item.<br>
+ * When the queue is full or empty, threads wait according to the WaitStrategy. The producer calls close() after publishing the last item, after which
+ * consumers receive -1 (or null) once the queue is empty.
+ *
+ * @author schuemie
+ *
+ * @param <T>
+ *            The type of the items
+ */
+public class RingBuffer<T> {
+
+	/**
+	 * How a thread waits for a slot or an item to become available.
+	 */
+	public enum WaitStrategy {
+		/**
+		 * Keep checking. Lowest latency, but uses a full core while waiting.
+		 */
+		SPIN,
+
+		/**
+		 * Yield to other threads between checks.
+		 */
+		YIELD,
+
+		/**
+		 * Spin briefly, then yield, then sleep for PARK_NANOS between checks. Uses hardly any CPU while waiting for long.
+		 */
+		PARK;
+
+		public void idle(int iteration) {
+			switch (this) {
+				case SPIN:
+					break;
+				case YIELD:
+					Thread.yield();
+					break;
+				case PARK:
+					if (iteration < 100)
+						break;
+					else if (iteration < 200)
+						Thread.yield();
+					else
+						LockSupport.parkNanos(PARK_NANOS);
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Time a thread using WaitStrategy.PARK sleeps between checks.
+	 */
+	public static long					PARK_NANOS			= 50000;
+
+	private int							capacity;
+	private int							mask;
+	private AtomicReferenceArray<T>		items;
+	private AtomicLongArray				sequences;
+	private WaitStrategy				waitStrategy;
+	private long						producerPosition	= 0;
+	private AtomicLong					consumerPosition	= new AtomicLong(0);
+	private volatile long				closedAt			= Long.MAX_VALUE;
+
+	/**
+	 * @param minCapacity
+	 *            The minimum number of slots. The number of slots is rounded up to a power of 2.
+	 * @param waitStrategy
+	 *            How to wait when the buffer is full (producer) or empty (consumers)
+	 */
+	public RingBuffer(int minCapacity, WaitStrategy waitStrategy) {
+		capacity = Integer.highestOneBit(Math.max(1, minCapacity));
+		if (capacity < minCapacity)
+			capacity <<= 1;
+		mask = capacity - 1;
+		items = new AtomicReferenceArray<T>(capacity);
+		sequences = new AtomicLongArray(capacity);
+		// A slot is free for position p when its sequence is p, published when it is p + 1:
+		for (int i = 0; i < capacity; i++)
+			sequences.set(i, i);
+		this.waitStrategy = waitStrategy;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Claims slots for the producer, waiting until they are free. Only call from the producer thread.
+	 *
+	 * @param count
+	 *            The number of slots, at most the capacity
+	 * @return The sequence of the first slot. The slots must be filled with set() and then published with publish()
+	 */
+	public long claim(int count) {
+		if (count > capacity)
+			throw new IllegalArgumentException("Cannot claim " + count + " slots in a ring buffer of " + capacity);
+		long first = producerPosition;
+		for (long sequence = first; sequence < first + count; sequence++) {
+			int index = (int) sequence & mask;
+			int iteration = 0;
+			while (sequences.get(index) != sequence)
+				waitStrategy.idle(iteration++);
+		}
+		producerPosition = first + count;
+		return first;
+	}
+
+	/**
+	 * Fills a claimed slot. Only call from the producer thread.
+	 */
+	public void set(long sequence, T item) {
+		items.lazySet((int) sequence & mask, item);
+	}
+
+	/**
+	 * Makes claimed and filled slots available to the consumers. Only call from the producer thread.
+	 */
+	public void publish(long first, int count) {
+		for (long sequence = first; sequence < first + count; sequence++)
+			sequences.set((int) sequence & mask, sequence + 1);
+	}
+
+	/**
+	 * Publishes a single item, waiting for a free slot if needed. Only call from the producer thread.
+	 */
+	public void put(T item) {
+		long sequence = claim(1);
+		set(sequence, item);
+		publish(sequence, 1);
+	}
+
+	/**
+	 * Publishes all items, in batches of at most the capacity. Only call from the producer thread.
+	 */
+	public void putAll(List<? extends T> items) {
+		int start = 0;
+		while (start < items.size()) {
+			int count = Math.min(capacity, items.size() - start);
+			long first = claim(count);
+			for (int i = 0; i < count; i++)
+				set(first + i, items.get(start + i));
+			publish(first, count);
+			start += count;
+		}
+	}
+
+	/**
+	 * Signals that no more items will be published. Only call from the producer thread, after publishing the last item.
+	 */
+	public void close() {
+		closedAt = producerPosition;
+	}
+
+	/**
+	 * Takes up to max items, waiting until at least one is available.
+	 *
+	 * @return The number of items added to the target, or -1 if the buffer has been closed and all items have been taken
+	 */
+	public int drainTo(Collection<? super T> target, int max) {
+		int iteration = 0;
+		while (true) {
+			long first = consumerPosition.get();
+			int available = 0;
+			while (available < max && sequences.get((int) (first + available) & mask) == first + available + 1)
+				available++;
+			if (available != 0) {
+				if (consumerPosition.compareAndSet(first, first + available)) {
+					for (long sequence = first; sequence < first + available; sequence++) {
+						int index = (int) sequence & mask;
+						target.add(items.get(index));
+						items.lazySet(index, null);
+						// Free the slot for the producer's next round:
+						sequences.set(index, sequence + capacity);
+					}
+					return available;
+				}
+				// Another consumer claimed these items first:
+				continue;
+			}
+			if (first >= closedAt)
+				return -1;
+			if (consumerPosition.get() == first)
+				waitStrategy.idle(iteration++);
+		}
+	}
+
+	/**
+	 * Takes a single item, waiting until one is available.
+	 *
+	 * @return The item, or null if the buffer has been closed and all items have been taken
+	 */
+	public T take() {
+		List<T> target = new ArrayList<T>(1);
+		if (drainTo(target, 1) == -1)
+			return null;
+		return target.get(0);
+	}
+}
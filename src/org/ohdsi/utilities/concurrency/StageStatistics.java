@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.utilities.concurrency;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the time the threads of a processing stage spend doing actual work, as opposed to waiting for input or for room in the output queue.
+ * Safe to update from multiple threads.
+ * 
+ * @author schuemie
+ *
+ */
+public class StageStatistics {
+	private String		name;
+	private int			threads;
+	private long		startTime	= System.nanoTime();
+	private AtomicLong	busyNanos	= new AtomicLong();
+	private AtomicLong	items		= new AtomicLong();
+	
+	public StageStatistics(String name, int threads) {
+		this.name = name;
+		this.threads = threads;
+	}
+	
+	public void addBusyTime(long nanos) {
+		busyNanos.addAndGet(nanos);
+	}
+	
+	public void addItems(long count) {
+		items.addAndGet(count);
+	}
+	
+	public long getBusyMillis() {
+		return busyNanos.get() / 1000000;
+	}
+	
+	public long getItems() {
+		return items.get();
+	}
+	
+	/**
+	 * @return The fraction of the available thread time (threads x time since creation) that was spent busy
+	 */
+	public double getUtilization() {
+		long elapsed = System.nanoTime() - startTime;
+		if (elapsed == 0)
+			return 0;
+		return busyNanos.get() / ((double) elapsed * threads);
+	}
+	
+	public String toString() {
+		return name + ": " + threads + " thread(s), " + items.get() + " items, busy " + getBusyMillis() + "ms ("
+				+ Math.round(100 * getUtilization()) + "% utilization)";
+	}
+}
@@ -41,4 +41,18 @@ public class IniFile {
 		else
 			return value;
 	}
+
+	/**
+	 * Returns the integer value of the setting, or the default value if the setting is not specified.
+	 */
+	public int getInt(String fieldName, int defaultValue) {
+		String value = get(fieldName);
+		if (value.length() == 0)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("Setting " + fieldName + " should be an integer, but found '" + value + "'");
+		}
+	}
 }
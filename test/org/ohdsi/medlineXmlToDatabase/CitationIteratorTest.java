@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import static org.ohdsi.utilities.testing.Assert.assertEquals;
+import static org.ohdsi.utilities.testing.Assert.assertFinishes;
+import static org.ohdsi.utilities.testing.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.w3c.dom.Node;
+
+/**
+ * Checks that the consumer of a CitationIterator receives the end of the file when decoding fails, instead of waiting forever.
+ *
+ * @author Schuemie
+ *
+ */
+public class CitationIteratorTest {
+
+	private static long	TIMEOUT	= 30000;
+
+	public void testFailingCitationFilterEndsFile() throws IOException {
+		File folder = writeFile(createXml(10), false);
+		CitationFilter citationFilter = new CitationFilter("Article_ArticleTitle != 'None'") {
+			private int	count	= 0;
+
+			@Override
+			public boolean accept(Node citation) {
+				if (++count == 3)
+					throw new RuntimeException("Filter failed");
+				return super.accept(citation);
+			}
+		};
+		Result result = read(folder, citationFilter);
+		assertTrue("error", result.error);
+		assertTrue("at most the citations before the failure", result.citations <= 2);
+	}
+
+	public void testTruncatedFileEndsFile() throws IOException {
+		File folder = writeFile(createXml(10), true);
+		Result result = read(folder, null);
+		assertTrue("error", result.error);
+		assertTrue("not all citations", result.citations < 10);
+	}
+
+	public void testCompleteFile() throws IOException {
+		File folder = writeFile(createXml(10), false);
+		Result result = read(folder, null);
+		assertTrue("no error", !result.error);
+		assertEquals("citations", 10, result.citations);
+	}
+
+	private static String createXml(int citations) {
+		StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<PubmedArticleSet>\n");
+		for (int i = 0; i < citations; i++)
+			xml.append("<PubmedArticle><MedlineCitation Status=\"MEDLINE\"><PMID Version=\"1\">" + (100 + i) + "</PMID><Article><ArticleTitle>Title " + i
+					+ "</ArticleTitle></Article></MedlineCitation></PubmedArticle>\n");
+		xml.append("</PubmedArticleSet>\n");
+		return xml.toString();
+	}
+
+	/**
+	 * @param truncate
+	 *            If true, the file ends halfway through the XML, as if the download was interrupted
+	 */
+	private static File writeFile(String xml, boolean truncate) throws IOException {
+		File folder = Files.createTempDirectory("citations").toFile();
+		folder.deleteOnExit();
+		File file = new File(folder, "test.xml.gz");
+		file.deleteOnExit();
+		byte[] bytes = xml.getBytes("UTF-8");
+		OutputStream outputStream = new GZIPOutputStream(new FileOutputStream(file));
+		outputStream.write(bytes, 0, truncate ? bytes.length / 2 : bytes.length);
+		outputStream.close();
+		return folder;
+	}
+
+	private static Result read(final File folder, final CitationFilter citationFilter) {
+		final Result result = new Result();
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					XMLFileIterator iterator = new XMLFileIterator(folder.getAbsolutePath());
+					iterator.setCitationFilter(citationFilter);
+					while (iterator.hasNext()) {
+						CitationIterator citationIterator = iterator.next();
+						while (citationIterator.hasNext()) {
+							citationIterator.next();
+							result.citations++;
+						}
+						result.error |= citationIterator.hasError();
+					}
+				} catch (Throwable t) {
+					failures.add(t);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		assertFinishes("reading", thread, TIMEOUT);
+		if (failures.size() != 0)
+			throw new RuntimeException(failures.get(0));
+		return result;
+	}
+
+	private static class Result {
+		public int		citations	= 0;
+		public boolean	error		= false;
+	}
+}
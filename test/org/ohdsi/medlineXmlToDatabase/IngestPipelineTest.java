@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import static org.ohdsi.utilities.testing.Assert.assertEquals;
+import static org.ohdsi.utilities.testing.Assert.assertFinishes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Runs the IngestPipeline on small xml.gz files with a writer that only records what it is asked to write, and checks that transforming the batches in
+ * parallel does not change the order of the operations on each PMID.
+ *
+ * @author Schuemie
+ *
+ */
+public class IngestPipelineTest {
+
+	private static long		TIMEOUT		= 60000;
+	private static int		FILES		= 3;
+	private static int		CITATIONS	= 400;
+
+	private List<String>	expected	= new ArrayList<String>();
+
+	/**
+	 * Small batches are split into chunks of a few citations by the ForkJoinPool, and several transform threads work on different batches at the same
+	 * time. The writer must still receive the operations on each PMID, with the same rows, in the same order as when a single thread transforms
+	 * everything.
+	 */
+	public void testForkJoinKeepsFileOrder() throws IOException {
+		File folder = writeFiles();
+		MedlineCitationAnalyser analyser = new MedlineCitationAnalyser();
+		XMLFileIterator iterator = new XMLFileIterator(folder.getAbsolutePath());
+		while (iterator.hasNext()) {
+			CitationIterator citationIterator = iterator.next();
+			while (citationIterator.hasNext())
+				analyser.analyse(citationIterator.next());
+		}
+		analyser.finish();
+		MedlineCitationParser parser = new MedlineCitationParser(analyser.getTableStructure(), null, null);
+
+		int transformThreads = IngestPipeline.TRANSFORM_THREADS;
+		int forkJoinThreads = IngestPipeline.FORK_JOIN_THREADS;
+		int splitSize = IngestPipeline.SPLIT_SIZE;
+		int citationsPerBatch = IngestPipeline.CITATIONS_PER_BATCH;
+		try {
+			IngestPipeline.CITATIONS_PER_BATCH = 50;
+			IngestPipeline.TRANSFORM_THREADS = 1;
+			IngestPipeline.FORK_JOIN_THREADS = 0;
+			Map<String, List<String>> sequential = byPmid(run(folder, parser));
+			assertEquals("sequential", byPmid(expected), withoutRows(sequential));
+
+			IngestPipeline.TRANSFORM_THREADS = 3;
+			IngestPipeline.FORK_JOIN_THREADS = 4;
+			for (int split : Arrays.asList(1, 7, 100)) {
+				IngestPipeline.SPLIT_SIZE = split;
+				assertEquals("fork-join with split size " + split, sequential, byPmid(run(folder, parser)));
+			}
+		} finally {
+			IngestPipeline.TRANSFORM_THREADS = transformThreads;
+			IngestPipeline.FORK_JOIN_THREADS = forkJoinThreads;
+			IngestPipeline.SPLIT_SIZE = splitSize;
+			IngestPipeline.CITATIONS_PER_BATCH = citationsPerBatch;
+		}
+	}
+
+	/**
+	 * Writes files in which each PMID occurs in several versions, and some are deleted again, so a change in order changes the result. The number of
+	 * authors differs per citation, so the citations have different numbers of rows and take different times to transform.
+	 */
+	private File writeFiles() throws IOException {
+		File folder = Files.createTempDirectory("pipeline").toFile();
+		folder.deleteOnExit();
+		for (int f = 0; f < FILES; f++) {
+			StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<PubmedArticleSet>\n");
+			for (int i = 0; i < CITATIONS; i++) {
+				int pmid = 1000 + (i * 7 + f * 3) % 150;
+				int version = f * CITATIONS + i + 1;
+				xml.append("<PubmedArticle><MedlineCitation Status=\"MEDLINE\"><PMID Version=\"" + version + "\">" + pmid + "</PMID><Article>");
+				xml.append("<Journal><JournalIssue><PubDate><Year>" + (1990 + i % 20) + "</Year></PubDate></JournalIssue></Journal>");
+				xml.append("<ArticleTitle>Title " + f + "-" + i + "</ArticleTitle><AuthorList>");
+				for (int a = 0; a < (i * 13) % 9; a++)
+					xml.append("<Author><LastName>Author " + a + "</LastName></Author>");
+				xml.append("</AuthorList></Article></MedlineCitation></PubmedArticle>\n");
+				expected.add(pmid + "_" + version);
+				if (i % 50 == 49) {
+					xml.append("<DeleteCitation><PMID Version=\"" + version + "\">" + pmid + "</PMID></DeleteCitation>\n");
+					expected.add(pmid + "_" + version + " delete");
+				}
+			}
+			xml.append("</PubmedArticleSet>\n");
+			File file = new File(folder, "pubmed" + (10 + f) + ".xml.gz");
+			file.deleteOnExit();
+			Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), "UTF-8");
+			writer.write(xml.toString());
+			writer.close();
+		}
+		return folder;
+	}
+
+	private static List<String> run(final File folder, MedlineCitationParser parser) {
+		final RecordingWriter writer = new RecordingWriter();
+		List<CitationWriter> writers = new ArrayList<CitationWriter>();
+		writers.add(writer);
+		final IngestPipeline pipeline = new IngestPipeline(parser, writers, null, null, null);
+		final Throwable[] failure = new Throwable[1];
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					pipeline.run(new XMLFileIterator(folder.getAbsolutePath()));
+				} catch (Throwable t) {
+					failure[0] = t;
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		assertFinishes("pipeline", thread, TIMEOUT);
+		if (failure[0] != null)
+			throw new RuntimeException(failure[0]);
+		return writer.written;
+	}
+
+	/**
+	 * The scheduler only keeps the order of the operations on the same PMID, so the operations are compared per PMID.
+	 */
+	private static Map<String, List<String>> byPmid(List<String> written) {
+		Map<String, List<String>> pmidToWritten = new HashMap<String, List<String>>();
+		for (String citation : written) {
+			String pmid = citation.substring(0, citation.indexOf('_'));
+			List<String> list = pmidToWritten.get(pmid);
+			if (list == null) {
+				list = new ArrayList<String>();
+				pmidToWritten.put(pmid, list);
+			}
+			list.add(citation);
+		}
+		return pmidToWritten;
+	}
+
+	private static Map<String, List<String>> withoutRows(Map<String, List<String>> pmidToWritten) {
+		Map<String, List<String>> result = new HashMap<String, List<String>>();
+		for (Map.Entry<String, List<String>> entry : pmidToWritten.entrySet()) {
+			List<String> list = new ArrayList<String>();
+			for (String citation : entry.getValue())
+				list.add(citation.substring(0, citation.indexOf(':')));
+			result.put(entry.getKey(), list);
+		}
+		return result;
+	}
+
+	/**
+	 * Records the citations and their rows instead of writing them to a database.
+	 */
+	private static class RecordingWriter extends CitationWriter {
+		public List<String>	written	= new ArrayList<String>();
+
+		@Override
+		public int getCitationsPerCommit() {
+			return 10;
+		}
+
+		@Override
+		public void write(ParsedCitation citation) {
+			StringBuilder description = new StringBuilder(citation.pmid + "_" + citation.pmidVersion + (citation.isDelete ? " delete" : "") + ":");
+			for (TableRow row : citation.rows)
+				description.append(" " + row.table + row.values);
+			written.add(description.toString());
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void recordFile(FileLedger fileLedger, FileLedger.FileRecord fileRecord) {
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Measures how much of the time spent on a citation could be saved by generating a row builder per table instead of filling the values array of the
+ * TableRow through the trie:
+ * <ul>
+ * <li>Decode: reading the xml.gz files into DOM elements</li>
+ * <li>Walk: visiting every element, value and attribute of the DOM once. Any generated code working on the DOM has to do at least this</li>
+ * <li>Parse: MedlineCitationParser.parse() plus the publication date, as done by the transform stage</li>
+ * </ul>
+ * Parse minus walk is an upper bound on what generated row builders could save. The table structure is taken from the MedlineCitationAnalyser, so no
+ * database is needed.<br>
+ * Usage: ParserBenchmark &lt;folder with xml.gz files&gt;. Each measurement is run twice, and only the second run is reported, so the JIT has warmed
+ * up.
+ *
+ * @author Schuemie
+ *
+ */
+public class ParserBenchmark {
+
+	private static int	sink;
+
+	public static void main(String[] args) {
+		String folder = args[0];
+		List<Node> citations = new ArrayList<Node>();
+		long decodeNanos = 0;
+		for (int run = 0; run < 2; run++) {
+			citations.clear();
+			long start = System.nanoTime();
+			XMLFileIterator iterator = new XMLFileIterator(folder);
+			while (iterator.hasNext()) {
+				CitationIterator citationIterator = iterator.next();
+				while (citationIterator.hasNext()) {
+					Node node = citationIterator.next();
+					if (node.getNodeName().equals(CitationIterator.MEDLINE_CITATION))
+						citations.add(node);
+				}
+			}
+			decodeNanos = System.nanoTime() - start;
+		}
+
+		MedlineCitationAnalyser analyser = new MedlineCitationAnalyser();
+		for (Node citation : citations)
+			analyser.analyse(citation);
+		analyser.finish();
+		MedlineCitationParser parser = new MedlineCitationParser(analyser.getTableStructure(), null, null);
+		PmidToDate pmidToDate = new PmidToDate();
+
+		long walkNanos = 0;
+		for (int run = 0; run < 2; run++) {
+			long start = System.nanoTime();
+			for (Node citation : citations)
+				sink += walk(citation);
+			walkNanos = System.nanoTime() - start;
+		}
+
+		long parseNanos = 0;
+		int rows = 0;
+		for (int run = 0; run < 2; run++) {
+			rows = 0;
+			long start = System.nanoTime();
+			for (Node citation : citations) {
+				ParsedCitation parsedCitation = parser.parse(citation);
+				parsedCitation.dateRow = pmidToDate.getDateRow(citation);
+				rows += parsedCitation.rows.size();
+			}
+			parseNanos = System.nanoTime() - start;
+		}
+
+		int count = citations.size();
+		System.out.println(count + " citations, " + rows + " rows");
+		System.out.println("- " + format("Decode", decodeNanos, count));
+		System.out.println("- " + format("Walk", walkNanos, count));
+		System.out.println("- " + format("Parse", parseNanos, count));
+		System.out.println(String.format("Generated row builders could save at most %.0f%% of the parse time, and %.0f%% of decode plus parse",
+				100d * (parseNanos - walkNanos) / parseNanos, 100d * (parseNanos - walkNanos) / (decodeNanos + parseNanos)));
+		if (sink == 42)
+			System.out.println();
+	}
+
+	private static String format(String name, long nanos, int citations) {
+		return String.format("%-8s %8.0f ns per citation, %8.0f citations per second", name, nanos / (double) citations, citations * 1e9 / nanos);
+	}
+
+	/**
+	 * Reads every name, value and attribute below the node, and returns something depending on all of them, so the JIT cannot skip the work.
+	 */
+	private static int walk(Node node) {
+		int result = node.getNodeName().length();
+		String value = node.getNodeValue();
+		if (value != null)
+			result += value.length();
+		NamedNodeMap attributes = node.getAttributes();
+		if (attributes != null)
+			for (int i = 0; i < attributes.getLength(); i++) {
+				Node attribute = attributes.item(i);
+				result += attribute.getNodeName().length() + attribute.getNodeValue().length();
+			}
+		NodeList children = node.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++)
+			result += walk(children.item(i));
+		return result;
+	}
+}
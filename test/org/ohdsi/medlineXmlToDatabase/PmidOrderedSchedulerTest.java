@@ -0,0 +1,395 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import static org.ohdsi.utilities.testing.Assert.assertEquals;
+import static org.ohdsi.utilities.testing.Assert.assertFinishes;
+import static org.ohdsi.utilities.testing.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Runs the PmidOrderedScheduler with writers that only record what they are asked to do, and checks the order of the writes and commits.
+ *
+ * @author Schuemie
+ *
+ */
+public class PmidOrderedSchedulerTest {
+
+	private static long		TIMEOUT			= 30000;
+
+	private List<Event>		events			= new ArrayList<Event>();
+	private List<String>	completedFiles	= new ArrayList<String>();
+	private List<String>	ledgerFiles		= new ArrayList<String>();
+	private Set<String>		failing			= new HashSet<String>();
+
+	public void testPmidOrderIsKeptWithSeveralWriters() {
+		List<SubmittedFile> files = createFiles(10, 50, 20, new Random(1));
+		run(files, 3, false, null);
+		checkAllWrittenOnce(files);
+		checkPmidOrder(true);
+		checkCompletedFiles(files);
+	}
+
+	/**
+	 * A PMID that occurs twice in one file (here a citation followed by its deletion) must not wait for the commit of its first operation, since that
+	 * commit only happens once the whole file has been written.
+	 */
+	public void testCommitPerFileWithPmidTwiceInFile() {
+		for (int writers = 1; writers <= 2; writers++) {
+			events.clear();
+			completedFiles.clear();
+			SubmittedFile file = new SubmittedFile("file1.xml.gz");
+			file.citations.add(citation("1", "1", false));
+			file.citations.add(citation("2", "1", false));
+			file.citations.add(citation("1", "2", true));
+			List<SubmittedFile> files = new ArrayList<SubmittedFile>();
+			files.add(file);
+			run(files, writers, true, null);
+			checkAllWrittenOnce(files);
+			checkPmidOrder(false);
+			checkOneFilePerCommit(files);
+		}
+	}
+
+	public void testCommitPerFileWritesEachFileInOneTransaction() {
+		List<SubmittedFile> files = createFiles(8, 30, 10, new Random(2));
+		run(files, 2, true, null);
+		checkAllWrittenOnce(files);
+		checkPmidOrder(true);
+		checkOneFilePerCommit(files);
+		checkCompletedFiles(files);
+	}
+
+	public void testFileLedgerRecordsCompletedFilesAfterCommit() {
+		List<SubmittedFile> files = createFiles(6, 20, 10, new Random(3));
+		files.get(2).fileError = true;
+		run(files, 3, false, new RecordingFileLedger());
+		List<String> expected = new ArrayList<String>();
+		for (SubmittedFile file : files)
+			if (!file.fileError)
+				expected.add(file.fileName);
+		assertEquals("Files in the ledger", expected, ledgerFiles);
+		// Each file is recorded only after all of its citations have been committed:
+		for (int i = 0; i < events.size(); i++)
+			if (events.get(i).type == EventType.RECORD) {
+				Set<ParsedCitation> committed = getCommittedBefore(i);
+				for (SubmittedFile file : files)
+					if (file.fileName.equals(events.get(i).fileName))
+						for (ParsedCitation citation : file.citations)
+							assertTrue(file.fileName + " recorded before all citations were committed", committed.contains(citation));
+			}
+	}
+
+	/**
+	 * Without COMMIT_PER_FILE the writer drops the citations it cannot write. Their file must not be recorded, so it is loaded again in the next run.
+	 */
+	public void testFileWithDroppedCitationIsNotRecorded() {
+		List<SubmittedFile> files = createFiles(6, 20, 10, new Random(6));
+		ParsedCitation citation = files.get(3).citations.get(5);
+		failing.add(citation.pmid + "_" + citation.pmidVersion);
+		run(files, 3, false, new RecordingFileLedger());
+		List<String> expected = new ArrayList<String>();
+		for (SubmittedFile file : files)
+			if (file != files.get(3))
+				expected.add(file.fileName);
+		assertEquals("Files in the ledger", expected, ledgerFiles);
+		checkCompletedFiles(files);
+	}
+
+	public void testFileLedgerRecordIsPartOfFileTransactionWhenCommittingPerFile() {
+		List<SubmittedFile> files = createFiles(4, 10, 5, new Random(4));
+		files.get(1).fileError = true;
+		run(files, 2, true, new RecordingFileLedger());
+		List<String> recorded = new ArrayList<String>();
+		for (int i = 0; i < events.size(); i++)
+			if (events.get(i).type == EventType.RECORD) {
+				recorded.add(events.get(i).fileName);
+				// The next event of the same writer must be the commit of the file:
+				Event commit = null;
+				for (int j = i + 1; j < events.size() && commit == null; j++)
+					if (events.get(j).writer == events.get(i).writer)
+						commit = events.get(j);
+				assertTrue("Record of " + events.get(i).fileName + " followed by commit", commit != null && commit.type == EventType.FLUSH);
+			}
+		assertEquals("Files recorded", 3, recorded.size());
+		assertTrue("File with error not recorded", !recorded.contains(files.get(1).fileName));
+	}
+
+	public void testPartitionByPmid() {
+		boolean oldPartitionByPmid = PmidOrderedScheduler.PARTITION_BY_PMID;
+		PmidOrderedScheduler.PARTITION_BY_PMID = true;
+		try {
+			List<SubmittedFile> files = createFiles(10, 50, 20, new Random(5));
+			run(files, 3, false, null);
+			checkAllWrittenOnce(files);
+			checkPmidOrder(false);
+			checkCompletedFiles(files);
+			Map<String, Integer> pmidToWriter = new HashMap<String, Integer>();
+			for (Event event : events)
+				if (event.type == EventType.WRITE) {
+					Integer writer = pmidToWriter.get(event.citation.pmid);
+					if (writer == null)
+						pmidToWriter.put(event.citation.pmid, event.writer);
+					else
+						assertEquals("Writer of PMID " + event.citation.pmid, writer, event.writer);
+				}
+		} finally {
+			PmidOrderedScheduler.PARTITION_BY_PMID = oldPartitionByPmid;
+		}
+	}
+
+	private void run(final List<SubmittedFile> files, int writerCount, final boolean commitPerFile, final FileLedger fileLedger) {
+		final List<CitationWriter> writers = new ArrayList<CitationWriter>();
+		for (int i = 0; i < writerCount; i++)
+			writers.add(new RecordingWriter(i, commitPerFile ? Integer.MAX_VALUE : 7));
+		final Throwable[] failure = new Throwable[1];
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					PmidOrderedScheduler scheduler = new PmidOrderedScheduler(writers, new PmidOrderedScheduler.FileCompletionListener() {
+						@Override
+						public void fileCompleted(String fileName, int citations, boolean fileError) {
+							synchronized (completedFiles) {
+								completedFiles.add(fileName + ":" + citations);
+							}
+						}
+					}, commitPerFile, fileLedger);
+					for (SubmittedFile file : files) {
+						for (ParsedCitation citation : file.citations)
+							scheduler.submit(file.fileName, citation);
+						scheduler.fileSubmitted(file.fileName, file.fileError, 0, "");
+					}
+					scheduler.finish();
+				} catch (Throwable t) {
+					failure[0] = t;
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		assertFinishes("Writing " + files.size() + " files with " + writerCount + " writers", thread, TIMEOUT);
+		if (failure[0] != null)
+			throw new RuntimeException(failure[0]);
+	}
+
+	/**
+	 * Creates files with citations of PMIDs 1 to pmids, where the same PMID can occur several times in a file and in different files. About one in five
+	 * operations is a delete. The version of each citation is its sequence number for the PMID, so the order can be checked.
+	 */
+	private static List<SubmittedFile> createFiles(int fileCount, int citationsPerFile, int pmids, Random random) {
+		Map<String, Integer> pmidToCount = new HashMap<String, Integer>();
+		List<SubmittedFile> files = new ArrayList<SubmittedFile>();
+		for (int i = 0; i < fileCount; i++) {
+			SubmittedFile file = new SubmittedFile("file" + (100 + i) + ".xml.gz");
+			for (int j = 0; j < citationsPerFile; j++) {
+				String pmid = Integer.toString(1 + random.nextInt(pmids));
+				Integer count = pmidToCount.get(pmid);
+				count = count == null ? 1 : count + 1;
+				pmidToCount.put(pmid, count);
+				file.citations.add(citation(pmid, count.toString(), random.nextInt(5) == 0));
+			}
+			files.add(file);
+		}
+		return files;
+	}
+
+	private static ParsedCitation citation(String pmid, String sequenceNumber, boolean isDelete) {
+		ParsedCitation citation = new ParsedCitation(pmid, sequenceNumber);
+		citation.isDelete = isDelete;
+		return citation;
+	}
+
+	private void checkAllWrittenOnce(List<SubmittedFile> files) {
+		Set<ParsedCitation> written = new HashSet<ParsedCitation>();
+		for (Event event : events)
+			if (event.type == EventType.WRITE)
+				assertTrue("Citation " + event.citation.pmid + " written once", written.add(event.citation));
+		int count = 0;
+		for (SubmittedFile file : files)
+			count += file.citations.size();
+		assertEquals("Number of citations written", count, written.size());
+		assertEquals("All written citations committed", written, getCommittedBefore(events.size()));
+	}
+
+	/**
+	 * Checks that the operations on each PMID were written in the order in which they were submitted. If mustBeCommitted is true, an operation must also
+	 * only be written after the previous operation on the same PMID has been committed.
+	 */
+	private void checkPmidOrder(boolean mustBeCommitted) {
+		Map<String, ParsedCitation> pmidToLast = new HashMap<String, ParsedCitation>();
+		for (int i = 0; i < events.size(); i++) {
+			Event event = events.get(i);
+			if (event.type != EventType.WRITE)
+				continue;
+			ParsedCitation previous = pmidToLast.get(event.citation.pmid);
+			int expected = previous == null ? 1 : Integer.parseInt(previous.pmidVersion) + 1;
+			assertEquals("Sequence number of PMID " + event.citation.pmid, Integer.toString(expected), event.citation.pmidVersion);
+			if (mustBeCommitted && previous != null && !sameFileCommit(previous, event))
+				assertTrue("Previous operation on PMID " + event.citation.pmid + " committed", getCommittedBefore(i).contains(previous));
+			pmidToLast.put(event.citation.pmid, event.citation);
+		}
+	}
+
+	/**
+	 * When committing per file, operations on the same PMID in the same file are written in one transaction, so the first is not committed before the
+	 * second is written.
+	 */
+	private boolean sameFileCommit(ParsedCitation previous, Event event) {
+		for (int i = events.indexOf(event) - 1; i >= 0; i--) {
+			Event earlier = events.get(i);
+			if (earlier.writer != event.writer)
+				continue;
+			if (earlier.type == EventType.FLUSH)
+				return false;
+			if (earlier.type == EventType.WRITE && earlier.citation == previous)
+				return true;
+		}
+		return false;
+	}
+
+	private void checkOneFilePerCommit(List<SubmittedFile> files) {
+		for (Event event : events)
+			if (event.type == EventType.FLUSH && event.committed.size() != 0) {
+				SubmittedFile match = null;
+				for (SubmittedFile file : files)
+					if (file.citations.contains(event.committed.get(0)))
+						match = file;
+				assertEquals("Citations committed together", new HashSet<ParsedCitation>(match.citations), new HashSet<ParsedCitation>(event.committed));
+			}
+	}
+
+	private void checkCompletedFiles(List<SubmittedFile> files) {
+		List<String> expected = new ArrayList<String>();
+		for (SubmittedFile file : files)
+			expected.add(file.fileName + ":" + file.citations.size());
+		assertEquals("Completed files", expected, completedFiles);
+	}
+
+	private Set<ParsedCitation> getCommittedBefore(int index) {
+		Set<ParsedCitation> committed = new HashSet<ParsedCitation>();
+		for (int i = 0; i < index; i++)
+			if (events.get(i).type == EventType.FLUSH)
+				committed.addAll(events.get(i).committed);
+		return committed;
+	}
+
+	private void addEvent(Event event) {
+		synchronized (events) {
+			events.add(event);
+		}
+	}
+
+	private static class SubmittedFile {
+		public String				fileName;
+		public List<ParsedCitation>	citations	= new ArrayList<ParsedCitation>();
+		public boolean				fileError	= false;
+
+		public SubmittedFile(String fileName) {
+			this.fileName = fileName;
+		}
+	}
+
+	private enum EventType {
+		WRITE, FLUSH, RECORD
+	}
+
+	private static class Event {
+		public EventType			type;
+		public int					writer;
+		public ParsedCitation		citation;
+		public List<ParsedCitation>	committed;
+		public String				fileName;
+
+		public Event(EventType type, int writer) {
+			this.type = type;
+			this.writer = writer;
+		}
+	}
+
+	/**
+	 * Records the operations instead of writing them to a database.
+	 */
+	private class RecordingWriter extends CitationWriter {
+		private int						number;
+		private int						citationsPerCommit;
+		private List<ParsedCitation>	uncommitted	= new ArrayList<ParsedCitation>();
+		private Set<String>				dropped		= new HashSet<String>();
+
+		public RecordingWriter(int number, int citationsPerCommit) {
+			this.number = number;
+			this.citationsPerCommit = citationsPerCommit;
+		}
+
+		@Override
+		public int getCitationsPerCommit() {
+			return citationsPerCommit;
+		}
+
+		@Override
+		public void write(ParsedCitation citation) {
+			Event event = new Event(EventType.WRITE, number);
+			event.citation = citation;
+			addEvent(event);
+			uncommitted.add(citation);
+		}
+
+		@Override
+		public void flush() {
+			Event event = new Event(EventType.FLUSH, number);
+			event.committed = new ArrayList<ParsedCitation>(uncommitted);
+			addEvent(event);
+			for (ParsedCitation citation : uncommitted)
+				if (failing.contains(citation.pmid + "_" + citation.pmidVersion))
+					dropped.add(citation.pmid + "_" + citation.pmidVersion);
+			uncommitted.clear();
+		}
+
+		@Override
+		public Set<String> takeDroppedCitations() {
+			Set<String> result = dropped;
+			dropped = new HashSet<String>();
+			return result;
+		}
+
+		@Override
+		public void recordFile(FileLedger fileLedger, FileLedger.FileRecord fileRecord) {
+			Event event = new Event(EventType.RECORD, number);
+			event.fileName = fileRecord.fileName;
+			addEvent(event);
+		}
+	}
+
+	private class RecordingFileLedger extends FileLedger {
+
+		@Override
+		public void record(FileLedger.FileRecord fileRecord) {
+			Event event = new Event(EventType.RECORD, -1);
+			event.fileName = fileRecord.fileName;
+			addEvent(event);
+			synchronized (ledgerFiles) {
+				ledgerFiles.add(fileRecord.fileName);
+			}
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.medlineXmlToDatabase;
+
+import static org.ohdsi.utilities.testing.Assert.assertEquals;
+import static org.ohdsi.utilities.testing.Assert.assertNotNull;
+import static org.ohdsi.utilities.testing.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.ohdsi.utilities.XmlTools;
+import org.ohdsi.utilities.XmlTools.ElementFilter;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Streams a small xml.gz file with the element filter of a projection, and checks what is kept.
+ *
+ * @author Schuemie
+ *
+ */
+public class ProjectionTest {
+
+	private static String	XML	= "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<PubmedArticleSet>\n"
+										+ "<PubmedArticle><MedlineCitation Status=\"MEDLINE\"><PMID Version=\"1\">100</PMID><Article>"
+										+ "<Journal><JournalIssue><PubDate><Year>2014</Year><Month>Dec</Month></PubDate></JournalIssue></Journal>"
+										+ "<ArticleTitle>First</ArticleTitle><Abstract><AbstractText>Text</AbstractText></Abstract>"
+										+ "<ArticleDate DateType=\"Electronic\"><Year>2015</Year><Month>03</Month><Day>04</Day></ArticleDate>"
+										+ "</Article><MedlineJournalInfo><NlmUniqueID>0372351</NlmUniqueID></MedlineJournalInfo></MedlineCitation></PubmedArticle>\n"
+										+ "<PubmedArticle><MedlineCitation Status=\"MEDLINE\"><PMID Version=\"2\">101</PMID><Article>"
+										+ "<Journal><JournalIssue><PubDate><MedlineDate>1998 Dec-1999 Jan</MedlineDate></PubDate></JournalIssue></Journal>"
+										+ "<ArticleTitle>Second</ArticleTitle></Article></MedlineCitation></PubmedArticle>\n"
+										+ "<PubmedArticle><MedlineCitation Status=\"MEDLINE\"><PMID Version=\"1\">102</PMID><Article>"
+										+ "<Journal><JournalIssue><PubDate><Year>2001</Year><Month>Feb</Month><Day>7</Day></PubDate></JournalIssue></Journal>"
+										+ "<ArticleTitle>Third</ArticleTitle></Article><MedlineJournalInfo><NlmUniqueID>0372351</NlmUniqueID></MedlineJournalInfo>"
+										+ "</MedlineCitation></PubmedArticle>\n"
+										+ "</PubmedArticleSet>\n";
+
+	/**
+	 * Only the title is stored, and the table of the article date is excluded, so neither the article date nor the publication date of the journal is
+	 * stored. Both are still needed for the pmid_to_date table.
+	 */
+	public void testDateRowIsTheSameWithProjection() throws IOException {
+		File folder = writeFile(XML);
+		Projection projection = new Projection("", "MedlineCitation_Article_ArticleDate", "");
+		Map<String, List<String>> tablesToFields = new HashMap<String, List<String>>();
+		tablesToFields.put("MedlineCitation", Arrays.asList("PMID", "PMID_Version", Abbreviator.abbreviate("Article_ArticleTitle")));
+		List<Node> projected = read(folder, projection.getElementFilter(tablesToFields));
+		List<Node> complete = read(folder, null);
+
+		assertEquals("citations", 3, projected.size());
+		PmidToDate pmidToDate = new PmidToDate();
+		for (int i = 0; i < complete.size(); i++) {
+			TableRow expected = pmidToDate.getDateRow(complete.get(i));
+			TableRow actual = pmidToDate.getDateRow(projected.get(i));
+			assertNotNull("date row of citation " + i, actual);
+			assertEquals("pmid of citation " + i, expected.get("pmid"), actual.get("pmid"));
+			assertEquals("pmid_version of citation " + i, expected.get("pmid_version"), actual.get("pmid_version"));
+			assertEquals("date of citation " + i, expected.get("date"), actual.get("date"));
+		}
+		assertEquals("article date is used", java.sql.Date.valueOf("2015-03-04"), pmidToDate.getDateRow(projected.get(0)).get("date"));
+		assertEquals("version", 2L, pmidToDate.getDateRow(projected.get(1)).get("pmid_version"));
+
+		// The parts that are not needed are still skipped:
+		Node article = XmlTools.getChildByName(projected.get(0), "Article");
+		assertEquals("title", "First", XmlTools.getChildByNameValue(article, "ArticleTitle"));
+		assertTrue("abstract is skipped", XmlTools.getChildByName(article, "Abstract") == null);
+		assertTrue("article date type is skipped", XmlTools.getAttributeValue(XmlTools.getChildByName(article, "ArticleDate"), "DateType") == null);
+		assertTrue("status is skipped", XmlTools.getAttributeValue(projected.get(0), "Status") == null);
+	}
+
+	/**
+	 * The journal is not stored, but the citation filter needs it.
+	 */
+	public void testCitationFilterSeesElementsThatAreNotStored() throws IOException {
+		File folder = writeFile(XML);
+		Projection projection = new Projection("", "", "");
+		Map<String, List<String>> tablesToFields = new HashMap<String, List<String>>();
+		tablesToFields.put("MedlineCitation", Arrays.asList("PMID", "PMID_Version", Abbreviator.abbreviate("Article_ArticleTitle")));
+		CitationFilter citationFilter = new CitationFilter("MedlineJournalInfo_NlmUniqueID = '0372351' AND Article_ArticleTitle != 'First'");
+		List<Node> projected = read(folder, projection.getElementFilter(tablesToFields, citationFilter.getElementPaths()), citationFilter);
+
+		assertEquals("citations", 1, projected.size());
+		assertEquals("pmid", "102", XmlTools.getChildByNameValue(projected.get(0), "PMID"));
+	}
+
+	/**
+	 * When unchanged citations are skipped, the hash is computed over the complete citation, and the filter is applied afterwards.
+	 */
+	public void testFilteringAfterReadingIsTheSameAsFilteringWhileReading() throws IOException {
+		File folder = writeFile(XML);
+		Projection projection = new Projection("", "MedlineCitation_Article_ArticleDate", "");
+		Map<String, List<String>> tablesToFields = new HashMap<String, List<String>>();
+		tablesToFields.put("MedlineCitation", Arrays.asList("PMID", "PMID_Version", Abbreviator.abbreviate("Article_ArticleTitle")));
+		ElementFilter filter = projection.getElementFilter(tablesToFields);
+		List<Node> projected = read(folder, filter);
+		List<Node> complete = read(folder, null);
+
+		for (int i = 0; i < complete.size(); i++) {
+			long hash = CitationHashStore.computeHash(complete.get(i));
+			XmlTools.filterElement((Element) complete.get(i), filter);
+			assertEquals("citation " + i, XmlTools.nodeToXml(projected.get(i)), XmlTools.nodeToXml(complete.get(i)));
+			assertTrue("hash covers the complete citation", hash != CitationHashStore.computeHash(complete.get(i)));
+		}
+	}
+
+	private static File writeFile(String xml) throws IOException {
+		File folder = Files.createTempDirectory("projection").toFile();
+		folder.deleteOnExit();
+		File file = new File(folder, "test.xml.gz");
+		file.deleteOnExit();
+		Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), "UTF-8");
+		writer.write(xml);
+		writer.close();
+		return folder;
+	}
+
+	private static List<Node> read(File folder, ElementFilter filter) {
+		return read(folder, filter, null);
+	}
+
+	private static List<Node> read(File folder, ElementFilter filter, CitationFilter citationFilter) {
+		List<Node> citations = new ArrayList<Node>();
+		XMLFileIterator iterator = new XMLFileIterator(folder.getAbsolutePath());
+		iterator.setElementFilter(filter);
+		iterator.setCitationFilter(citationFilter);
+		while (iterator.hasNext()) {
+			CitationIterator citationIterator = iterator.next();
+			while (citationIterator.hasNext())
+				citations.add(citationIterator.next());
+			assertTrue("no errors reading the file", !citationIterator.hasError());
+		}
+		return citations;
+	}
+}
@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.utilities.concurrency;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.ohdsi.utilities.concurrency.RingBuffer.WaitStrategy;
+
+/**
+ * Compares the RingBuffer with the Semaphore, BatchProcessingThread and ArrayBlockingQueue. The Semaphore and BatchProcessingThread were used to hand
+ * work between threads before the RingBuffer, and are only kept for this comparison:
+ * <ul>
+ * <li>Latency: the time for a round trip, where one thread hands an item to another and waits for an item back</li>
+ * <li>Throughput: the number of items per second one producer can hand to one or more consumers</li>
+ * </ul>
+ * Usage: RingBufferBenchmark [round trips] [items]. Each measurement is run twice, and only the second run is reported, so the JIT has warmed up.
+ * WaitStrategy.SPIN is skipped on a single processor, where a spinning thread keeps the other thread from running until its time slice ends.
+ *
+ * @author schuemie
+ *
+ */
+public class RingBufferBenchmark {
+
+	private static Integer	ITEM		= Integer.valueOf(1);
+	private static Integer	END			= Integer.valueOf(-1);
+	private static int		BATCH_SIZE	= 100;
+
+	public static void main(String[] args) {
+		int roundTrips = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int items = args.length > 1 ? Integer.parseInt(args[1]) : 10000000;
+		List<WaitStrategy> waitStrategies = new ArrayList<WaitStrategy>();
+		for (WaitStrategy waitStrategy : WaitStrategy.values())
+			if (waitStrategy != WaitStrategy.SPIN || Runtime.getRuntime().availableProcessors() > 1)
+				waitStrategies.add(waitStrategy);
+
+		System.out.println("Latency (" + roundTrips + " round trips)");
+		for (int run = 0; run < 2; run++) {
+			List<String> results = new ArrayList<String>();
+			results.add(format("Semaphore", semaphoreRoundTrip(roundTrips), roundTrips));
+			results.add(format("BatchProcessingThread", batchProcessingThreadRoundTrip(roundTrips), roundTrips));
+			results.add(format("ArrayBlockingQueue", blockingQueueRoundTrip(roundTrips), roundTrips));
+			for (WaitStrategy waitStrategy : waitStrategies)
+				results.add(format("RingBuffer " + waitStrategy, ringBufferRoundTrip(roundTrips, waitStrategy), roundTrips));
+			if (run == 1)
+				for (String result : results)
+					System.out.println("- " + result);
+		}
+
+		for (int consumers = 1; consumers <= 2; consumers++) {
+			System.out.println("Throughput (" + items + " items, " + consumers + " consumer" + (consumers == 1 ? "" : "s") + ")");
+			for (int run = 0; run < 2; run++) {
+				List<String> results = new ArrayList<String>();
+				results.add(formatThroughput("ArrayBlockingQueue", blockingQueueThroughput(items, consumers), items));
+				for (WaitStrategy waitStrategy : waitStrategies)
+					results.add(formatThroughput("RingBuffer " + waitStrategy, ringBufferThroughput(items, consumers, waitStrategy), items));
+				if (run == 1)
+					for (String result : results)
+						System.out.println("- " + result);
+			}
+		}
+	}
+
+	private static String format(String name, long nanos, int roundTrips) {
+		return String.format("%-24s %8.0f ns per round trip", name, nanos / (double) roundTrips);
+	}
+
+	private static String formatThroughput(String name, long nanos, int items) {
+		return String.format("%-24s %8.1f million items per second", name, items * 1000d / nanos);
+	}
+
+	private static long semaphoreRoundTrip(final int roundTrips) {
+		final Semaphore ping = new Semaphore();
+		final Semaphore pong = new Semaphore();
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < roundTrips; i++) {
+					ping.release();
+					pong.take();
+				}
+			}
+		};
+		thread.start();
+		long start = System.nanoTime();
+		for (int i = 0; i < roundTrips; i++) {
+			ping.take();
+			pong.release();
+		}
+		long nanos = System.nanoTime() - start;
+		join(thread);
+		return nanos;
+	}
+
+	private static long batchProcessingThreadRoundTrip(int roundTrips) {
+		BatchProcessingThread thread = new BatchProcessingThread() {
+			@Override
+			protected void process() {
+			}
+		};
+		long start = System.nanoTime();
+		for (int i = 0; i < roundTrips; i++) {
+			thread.proceed();
+			thread.waitUntilFinished();
+		}
+		long nanos = System.nanoTime() - start;
+		thread.terminate();
+		join(thread);
+		return nanos;
+	}
+
+	private static long blockingQueueRoundTrip(final int roundTrips) {
+		final BlockingQueue<Integer> ping = new ArrayBlockingQueue<Integer>(1);
+		final BlockingQueue<Integer> pong = new ArrayBlockingQueue<Integer>(1);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < roundTrips; i++)
+						pong.put(ping.take());
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		thread.start();
+		long start = System.nanoTime();
+		try {
+			for (int i = 0; i < roundTrips; i++) {
+				ping.put(ITEM);
+				pong.take();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		long nanos = System.nanoTime() - start;
+		join(thread);
+		return nanos;
+	}
+
+	private static long ringBufferRoundTrip(final int roundTrips, WaitStrategy waitStrategy) {
+		final RingBuffer<Integer> ping = new RingBuffer<Integer>(1, waitStrategy);
+		final RingBuffer<Integer> pong = new RingBuffer<Integer>(1, waitStrategy);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < roundTrips; i++)
+					pong.put(ping.take());
+			}
+		};
+		thread.start();
+		long start = System.nanoTime();
+		for (int i = 0; i < roundTrips; i++) {
+			ping.put(ITEM);
+			pong.take();
+		}
+		long nanos = System.nanoTime() - start;
+		join(thread);
+		return nanos;
+	}
+
+	private static long blockingQueueThroughput(int items, int consumers) {
+		final BlockingQueue<Integer> queue = new ArrayBlockingQueue<Integer>(1024);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < consumers; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						while (queue.take() != END)
+							;
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		long start = System.nanoTime();
+		try {
+			for (int i = 0; i < items; i++)
+				queue.put(ITEM);
+			for (int i = 0; i < consumers; i++)
+				queue.put(END);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		for (Thread thread : threads)
+			join(thread);
+		return System.nanoTime() - start;
+	}
+
+	private static long ringBufferThroughput(int items, int consumers, WaitStrategy waitStrategy) {
+		final RingBuffer<Integer> ringBuffer = new RingBuffer<Integer>(1024, waitStrategy);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < consumers; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					List<Integer> batch = new ArrayList<Integer>(BATCH_SIZE);
+					while (ringBuffer.drainTo(batch, BATCH_SIZE) != -1)
+						batch.clear();
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		List<Integer> batch = new ArrayList<Integer>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i++)
+			batch.add(ITEM);
+		long start = System.nanoTime();
+		for (int i = 0; i < items; i += BATCH_SIZE)
+			ringBuffer.putAll(i + BATCH_SIZE <= items ? batch : batch.subList(0, items - i));
+		ringBuffer.close();
+		for (Thread thread : threads)
+			join(thread);
+		return System.nanoTime() - start;
+	}
+
+	private static void join(Thread thread) {
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
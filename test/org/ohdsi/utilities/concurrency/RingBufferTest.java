@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.utilities.concurrency;
+
+import static org.ohdsi.utilities.testing.Assert.assertEquals;
+import static org.ohdsi.utilities.testing.Assert.assertFinishes;
+import static org.ohdsi.utilities.testing.Assert.assertTrue;
+import static org.ohdsi.utilities.testing.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ohdsi.utilities.concurrency.RingBuffer.WaitStrategy;
+
+/**
+ * Hands items through a small ring buffer, so the producer has to wait for the consumers many times, and checks that every item arrives exactly once and
+ * in order.
+ *
+ * @author Schuemie
+ *
+ */
+public class RingBufferTest {
+
+	private static int	ITEMS	= 100000;
+	private static long	TIMEOUT	= 60000;
+
+	public void testCapacityIsRoundedUpToPowerOfTwo() {
+		assertEquals("capacity of 0", 1, new RingBuffer<Integer>(0, WaitStrategy.YIELD).getCapacity());
+		assertEquals("capacity of 5", 8, new RingBuffer<Integer>(5, WaitStrategy.YIELD).getCapacity());
+		assertEquals("capacity of 8", 8, new RingBuffer<Integer>(8, WaitStrategy.YIELD).getCapacity());
+		try {
+			new RingBuffer<Integer>(8, WaitStrategy.YIELD).claim(9);
+			fail("claiming more slots than the capacity should fail");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	public void testClosedBufferIsDrainedBeforeReturningMinusOne() {
+		final RingBuffer<Integer> ringBuffer = new RingBuffer<Integer>(4, WaitStrategy.YIELD);
+		ringBuffer.put(1);
+		ringBuffer.put(2);
+		ringBuffer.put(3);
+		ringBuffer.close();
+		final List<Integer> target = new ArrayList<Integer>();
+		final List<Object> results = new ArrayList<Object>();
+		Thread consumer = new Thread() {
+			public void run() {
+				results.add(ringBuffer.drainTo(target, 2));
+				results.add(ringBuffer.drainTo(target, 2));
+				results.add(ringBuffer.drainTo(target, 2));
+				results.add(ringBuffer.drainTo(target, 2));
+				results.add(ringBuffer.take());
+			}
+		};
+		consumer.setDaemon(true);
+		consumer.start();
+		assertFinishes("consumer", consumer, TIMEOUT);
+		// Two items, the last item, -1 once the buffer is empty, and the same for every call after that:
+		assertEquals("results", Arrays.asList(2, 1, -1, -1, null), results);
+		assertEquals("items", Arrays.asList(1, 2, 3), target);
+	}
+
+	public void testCloseWakesWaitingConsumer() {
+		for (WaitStrategy waitStrategy : getWaitStrategies()) {
+			final RingBuffer<Integer> ringBuffer = new RingBuffer<Integer>(4, waitStrategy);
+			final List<Integer> results = new ArrayList<Integer>();
+			Thread consumer = new Thread() {
+				public void run() {
+					results.add(ringBuffer.drainTo(new ArrayList<Integer>(), 4));
+				}
+			};
+			consumer.setDaemon(true);
+			consumer.start();
+			sleep(100);
+			assertTrue(waitStrategy + " consumer waits while the buffer is empty", consumer.isAlive());
+			ringBuffer.close();
+			assertFinishes(waitStrategy + " consumer", consumer, TIMEOUT);
+			assertEquals(waitStrategy + " drain after close", Arrays.asList(-1), results);
+		}
+	}
+
+	public void testSingleConsumerReceivesItemsInOrder() {
+		for (WaitStrategy waitStrategy : getWaitStrategies()) {
+			RingBuffer<Integer> ringBuffer = new RingBuffer<Integer>(8, waitStrategy);
+			Consumer consumer = new Consumer(ringBuffer, 1);
+			consumer.start();
+			produce(ringBuffer);
+			assertFinishes(waitStrategy + " consumer", consumer, TIMEOUT);
+			assertEquals(waitStrategy + " items", ITEMS, consumer.items.size());
+			for (int i = 0; i < ITEMS; i++)
+				if (consumer.items.get(i) != i)
+					fail(waitStrategy + ": expected item " + i + " but was " + consumer.items.get(i));
+		}
+	}
+
+	public void testMultipleConsumersTakeEachItemOnce() {
+		for (WaitStrategy waitStrategy : getWaitStrategies()) {
+			RingBuffer<Integer> ringBuffer = new RingBuffer<Integer>(16, waitStrategy);
+			List<Consumer> consumers = new ArrayList<Consumer>();
+			for (int i = 0; i < 3; i++) {
+				Consumer consumer = new Consumer(ringBuffer, 5);
+				consumer.start();
+				consumers.add(consumer);
+			}
+			produce(ringBuffer);
+			boolean[] seen = new boolean[ITEMS];
+			int count = 0;
+			for (Consumer consumer : consumers) {
+				assertFinishes(waitStrategy + " consumer", consumer, TIMEOUT);
+				for (int i = 0; i < consumer.items.size(); i++) {
+					int item = consumer.items.get(i);
+					if (seen[item])
+						fail(waitStrategy + ": item " + item + " was taken twice");
+					seen[item] = true;
+					if (i != 0 && item <= consumer.items.get(i - 1))
+						fail(waitStrategy + ": consumer received item " + item + " after item " + consumer.items.get(i - 1));
+				}
+				count += consumer.items.size();
+			}
+			assertEquals(waitStrategy + " items", ITEMS, count);
+		}
+	}
+
+	/**
+	 * Publishes the items one at a time and in batches, and closes the buffer.
+	 */
+	private static void produce(RingBuffer<Integer> ringBuffer) {
+		List<Integer> batch = new ArrayList<Integer>();
+		for (int i = 0; i < ITEMS; i++) {
+			if (i % 1000 < 500)
+				ringBuffer.put(i);
+			else {
+				batch.add(i);
+				// Batches larger than the capacity are split by putAll:
+				if (batch.size() == 50) {
+					ringBuffer.putAll(batch);
+					batch.clear();
+				}
+			}
+		}
+		ringBuffer.putAll(batch);
+		ringBuffer.close();
+	}
+
+	/**
+	 * SPIN is only used with more than one processor, where a spinning thread does not keep the other threads from running.
+	 */
+	private static List<WaitStrategy> getWaitStrategies() {
+		List<WaitStrategy> waitStrategies = new ArrayList<WaitStrategy>();
+		for (WaitStrategy waitStrategy : WaitStrategy.values())
+			if (waitStrategy != WaitStrategy.SPIN || Runtime.getRuntime().availableProcessors() > 1)
+				waitStrategies.add(waitStrategy);
+		return waitStrategies;
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static class Consumer extends Thread {
+		private RingBuffer<Integer>	ringBuffer;
+		private int					max;
+		public List<Integer>		items	= new ArrayList<Integer>();
+
+		public Consumer(RingBuffer<Integer> ringBuffer, int max) {
+			this.ringBuffer = ringBuffer;
+			this.max = max;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (ringBuffer.drainTo(items, max) != -1)
+				;
+		}
+	}
+}
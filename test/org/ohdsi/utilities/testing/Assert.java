@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.utilities.testing;
+
+/**
+ * Assertions used by the tests. Failures are thrown as AssertionError.
+ *
+ * @author Schuemie
+ *
+ */
+public class Assert {
+
+	public static void fail(String message) {
+		throw new AssertionError(message);
+	}
+
+	public static void assertTrue(String message, boolean condition) {
+		if (!condition)
+			fail(message);
+	}
+
+	public static void assertFalse(String message, boolean condition) {
+		if (condition)
+			fail(message);
+	}
+
+	public static void assertEquals(Object expected, Object actual) {
+		assertEquals("", expected, actual);
+	}
+
+	public static void assertEquals(String message, Object expected, Object actual) {
+		if (expected == null ? actual != null : !expected.equals(actual))
+			fail((message.length() == 0 ? "" : message + ": ") + "expected <" + expected + "> but was <" + actual + ">");
+	}
+
+	public static void assertNotNull(String message, Object object) {
+		if (object == null)
+			fail(message);
+	}
+
+	/**
+	 * Waits for the thread to finish, and fails if it is still running after the timeout, for example because of a deadlock.
+	 */
+	public static void assertFinishes(String message, Thread thread, long timeoutMillis) {
+		try {
+			thread.join(timeoutMillis);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		if (thread.isAlive())
+			fail(message + " did not finish within " + timeoutMillis + "ms");
+	}
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright 2014 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.utilities.testing;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs the tests without any dependencies: every class whose name ends with Test is instantiated once per test, and each of its public methods without
+ * parameters whose name starts with test is called. A test fails if it throws anything.<br>
+ * Usage: TestRunner &lt;folder with the compiled tests&gt; [class name filter]. Exits with status 1 if any test failed.
+ *
+ * @author Schuemie
+ *
+ */
+public class TestRunner {
+
+	public static void main(String[] args) {
+		File folder = new File(args[0]);
+		String filter = args.length > 1 ? args[1] : "";
+		List<String> classNames = new ArrayList<String>();
+		findTestClasses(folder, "", classNames);
+		Collections.sort(classNames);
+		int tests = 0;
+		List<String> failures = new ArrayList<String>();
+		for (String className : classNames) {
+			if (!className.contains(filter))
+				continue;
+			Class<?> testClass;
+			try {
+				testClass = Class.forName(className);
+			} catch (ClassNotFoundException e) {
+				throw new RuntimeException(e);
+			}
+			if (Modifier.isAbstract(testClass.getModifiers()))
+				continue;
+			List<Method> methods = new ArrayList<Method>();
+			for (Method method : testClass.getMethods())
+				if (method.getName().startsWith("test") && method.getParameterTypes().length == 0 && !Modifier.isStatic(method.getModifiers()))
+					methods.add(method);
+			Collections.sort(methods, new Comparator<Method>() {
+				@Override
+				public int compare(Method o1, Method o2) {
+					return o1.getName().compareTo(o2.getName());
+				}
+			});
+			for (Method method : methods) {
+				String name = testClass.getSimpleName() + "." + method.getName();
+				tests++;
+				long start = System.currentTimeMillis();
+				try {
+					method.invoke(testClass.getDeclaredConstructor().newInstance());
+					System.out.println("Passed " + name + " (" + (System.currentTimeMillis() - start) + "ms)");
+				} catch (InvocationTargetException e) {
+					failures.add(name);
+					System.out.println("FAILED " + name);
+					e.getCause().printStackTrace(System.out);
+				} catch (Exception e) {
+					failures.add(name);
+					System.out.println("FAILED " + name);
+					e.printStackTrace(System.out);
+				}
+			}
+		}
+		System.out.println(tests + " tests, " + failures.size() + " failed");
+		for (String failure : failures)
+			System.out.println("- " + failure);
+		System.exit(failures.size() == 0 ? 0 : 1);
+	}
+
+	private static void findTestClasses(File folder, String packageName, List<String> classNames) {
+		File[] files = folder.listFiles();
+		if (files == null)
+			return;
+		for (File file : files)
+			if (file.isDirectory())
+				findTestClasses(file, packageName + file.getName() + ".", classNames);
+			else if (file.getName().endsWith("Test.class") && !file.getName().contains("$"))
+				classNames.add(packageName + file.getName().substring(0, file.getName().length() - ".class".length()));
+	}
+}